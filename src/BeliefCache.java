@@ -0,0 +1,148 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the tower beliefs learned on a map in memory so the next episode on the
+ * same map can start from them instead of the uniform prior. Maps are keyed by a
+ * fingerprint and the least recently used ones are evicted once the stored grids
+ * exceed the memory budget.
+ */
+public class BeliefCache {
+	private static final long ENTRY_OVERHEAD_BYTES = 64;
+
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+	private long budgetBytes;
+	private long usedBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 *
+	 * @param budgetBytes - Approximate number of bytes the stored grids may take up. 0 disables the cache.
+	 */
+	public BeliefCache(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	public synchronized void setBudget(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+		evict();
+	}
+
+	/**
+	 * Copies the stored beliefs for a map into the given grid.
+	 * @param fingerprint - The map's fingerprint
+	 * @param belief - Filled with the stored tower probabilities and seen locations on a hit
+	 * @return True on a hit, false if nothing is stored for a map of this size
+	 */
+	public boolean seed(long fingerprint, BeliefGrid belief) {
+		return seed(fingerprint, belief, true);
+	}
+
+	/**
+	 * Copies the stored beliefs for a map into the given grid.
+	 * @param fingerprint - The map's fingerprint
+	 * @param belief - Filled with the stored tower probabilities and seen locations on a hit
+	 * @param count - False to leave the hit and miss counts alone, when seeding another grid for a lookup already counted
+	 * @return True on a hit, false if nothing is stored for a map of this size
+	 */
+	public synchronized boolean seed(long fingerprint, BeliefGrid belief, boolean count) {
+		Entry entry = entries.get(fingerprint);
+		if(entry == null || entry.towerProb.length != belief.getColumns()
+				|| entry.towerProb[0].length != belief.getRows()) {
+			if(count) {
+				misses++;
+			}
+			return false;
+		}
+		belief.copyFrom(entry.towerProb, entry.hasSeen);
+		if(count) {
+			hits++;
+		}
+		return true;
+	}
+
+	/**
+	 * Stores a copy of the beliefs for a map, replacing anything stored before.
+	 */
+	public synchronized void store(long fingerprint, BeliefGrid belief) {
+		if(budgetBytes <= 0 || belief.getColumns() == 0 || belief.getRows() == 0) {
+			return;
+		}
+		Entry entry = new Entry(belief);
+		Entry old = entries.put(fingerprint, entry);
+		if(old != null) {
+			usedBytes -= old.bytes;
+		}
+		usedBytes += entry.bytes;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+		while(usedBytes > budgetBytes && it.hasNext()) {
+			usedBytes -= it.next().getValue().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Fingerprints a map from its extents, the townhall position and the resources in view.
+	 * The resources are combined independently of the order they are listed in.
+	 */
+	public static long fingerprint(int columns, int rows, int townhallX, int townhallY, int resources[][]) {
+		long hash = mix(0x9E3779B97F4A7C15L ^ columns);
+		hash = mix(hash ^ rows);
+		hash = mix(hash ^ (((long)townhallX << 32) | (townhallY & 0xFFFFFFFFL)));
+		long resourceHash = 0;
+		for(int resource[] : resources) {
+			resourceHash += mix(((long)resource[0] << 40) ^ ((long)resource[1] << 20) ^ resource[2]);
+		}
+		return mix(hash ^ resourceHash);
+	}
+
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= value >>> 33;
+		value *= 0xC4CEB9FE1A85EC53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	private static class Entry {
+		final double towerProb[][];
+		final boolean hasSeen[][];
+		final long bytes;
+
+		Entry(BeliefGrid belief) {
+			towerProb = new double[belief.getColumns()][belief.getRows()];
+			hasSeen = new boolean[belief.getColumns()][belief.getRows()];
+			belief.copyTo(towerProb, hasSeen);
+			bytes = ENTRY_OVERHEAD_BYTES + (long)belief.getColumns() * belief.getRows() * 9;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import edu.cwru.sepia.environment.model.state.State.StateView;
+import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+
+/**
+ * Writes snapshots of the agent's belief state to disk on a background thread.
+ * The agent hands frames over through a single-producer single-consumer ring
+ * of preallocated slots. A slot only takes a copy-on-write snapshot of the
+ * belief and the peasant positions, so handing off a frame never copies the
+ * board and never blocks; the writer makes the copy. When the ring is full
+ * the frame is dropped. The writer sleeps while the ring is empty and is
+ * woken by the next frame.
+ *
+ * Each frame is appended to one file as
+ * [magic][compressed length][raw length][deflated payload], where the payload is
+ * step, columns, rows, peasant count, (id, x, y) per peasant, the tower
+ * probabilities column by column and the seen flags packed eight to a byte.
+ */
+public class BeliefExporter implements Runnable {
+	private static final Logger logger = Logger.getLogger(BeliefExporter.class.getCanonicalName());
+	private static final int FRAME_MAGIC = 0x42454C46;
+	private static final int HEADER_BYTES = 12;
+	private static final AtomicLong filesOpened = new AtomicLong(0);
+
+	private final Frame slots[];
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+	private final File directory;
+	private volatile boolean running = true;
+	private volatile boolean idle = false;
+	private long framesDropped = 0;
+	private long framesWritten = 0;
+	private Thread worker;
+
+	private FileChannel channel;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte raw[] = new byte[0];
+	private byte compressed[] = new byte[0];
+	private ByteBuffer direct = ByteBuffer.allocateDirect(0);
+
+	/**
+	 *
+	 * @param directory - The directory the frame file is written to.
+	 * @param capacity - The number of frames that may be queued before frames are dropped.
+	 */
+	public BeliefExporter(File directory, int capacity) {
+		this.directory = directory;
+		slots = new Frame[capacity];
+		for(int i = 0; i < capacity; i++) {
+			slots[i] = new Frame();
+		}
+	}
+
+	/**
+	 * Starts the background writer thread.
+	 */
+	public void start() {
+		worker = new Thread(this, "belief-exporter");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Puts the belief snapshot and the peasant positions in a free slot and publishes it to the writer.
+	 * Must only be called from the agent thread, which must detach the snapshot before changing the belief.
+	 * @param step - The current step
+	 * @param belief - Snapshot of the tower probabilities and seen locations
+	 * @param peasantIds - The living peasants
+	 * @param state - The state the peasant positions are read from
+	 * @return False if the queue was full and the frame was dropped
+	 */
+	public boolean offer(int step, BeliefSnapshot belief, List<Integer> peasantIds, StateView state) {
+		long next = head.get();
+		if(next - tail.get() >= slots.length || !running) {
+			framesDropped++;
+			return false;
+		}
+		Frame frame = slots[(int)(next % slots.length)];
+		frame.step = step;
+		frame.belief = belief;
+		frame.numPeasants = 0;
+		for(Integer id : peasantIds) {
+			UnitView peasant = state.getUnit(id);
+			if(peasant != null) {
+				frame.addPeasant(id, peasant.getXPosition(), peasant.getYPosition());
+			}
+		}
+		head.set(next + 1);
+		if(idle) {
+			LockSupport.unpark(worker);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the writer once every queued frame has been written.
+	 */
+	public void shutdown() {
+		running = false;
+		if(worker != null) {
+			LockSupport.unpark(worker);
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Belief exporter wrote " + framesWritten + " frames, dropped " + framesDropped);
+		}
+	}
+
+	public long getFramesDropped() {
+		return framesDropped;
+	}
+
+	@Override
+	public void run() {
+		try {
+			directory.mkdirs();
+			//exporters started within the same millisecond must not truncate each other's file
+			File file = new File(directory, "belief-" + System.currentTimeMillis() + "-" 
+					+ filesOpened.getAndIncrement() + ".frames");
+			channel = new FileOutputStream(file).getChannel();
+			while(true) {
+				long next = tail.get();
+				if(next < head.get()) {
+					Frame frame = slots[(int)(next % slots.length)];
+					write(frame);
+					frame.belief = null;
+					tail.lazySet(next + 1);
+				} else if(running) {
+					//announce the nap before the last look at the ring, so a frame offered in between still wakes us
+					idle = true;
+					if(tail.get() == head.get() && running) {
+						LockSupport.park(this);
+					}
+					idle = false;
+				} else {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Belief exporter stopped", e);
+			running = false;
+		} finally {
+			deflater.end();
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Could not close belief frame file", e);
+				}
+			}
+		}
+	}
+
+	private void write(Frame frame) throws IOException {
+		BeliefGrid belief = frame.belief.get();
+		int columns = belief.getColumns();
+		int rows = belief.getRows();
+		int seenBytes = (columns * rows + 7) / 8;
+		int rawLength = 16 + 12 * frame.numPeasants + 8 * columns * rows + seenBytes;
+		if(raw.length < rawLength) {
+			raw = new byte[rawLength];
+			compressed = new byte[rawLength + rawLength / 1000 + 64];
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(raw, 0, rawLength);
+		buffer.putInt(frame.step);
+		buffer.putInt(columns);
+		buffer.putInt(rows);
+		buffer.putInt(frame.numPeasants);
+		for(int i = 0; i < frame.numPeasants * 3; i++) {
+			buffer.putInt(frame.peasants[i]);
+		}
+		for(int i = 0; i < columns; i++) {
+			for(int j = 0; j < rows; j++) {
+				buffer.putDouble(belief.getProb(i, j));
+			}
+		}
+		int bits = 0;
+		int count = 0;
+		for(int i = 0; i < columns; i++) {
+			for(int j = 0; j < rows; j++) {
+				if(belief.hasSeen(i, j)) {
+					bits |= 1 << count;
+				}
+				if(++count == 8) {
+					buffer.put((byte)bits);
+					bits = 0;
+					count = 0;
+				}
+			}
+		}
+		if(count != 0) {
+			buffer.put((byte)bits);
+		}
+
+		deflater.reset();
+		deflater.setInput(raw, 0, rawLength);
+		deflater.finish();
+		int compressedLength = 0;
+		while(!deflater.finished()) {
+			if(compressedLength == compressed.length) {
+				byte grown[] = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, grown, 0, compressedLength);
+				compressed = grown;
+			}
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+		}
+
+		if(direct.capacity() < HEADER_BYTES + compressedLength) {
+			direct = ByteBuffer.allocateDirect(HEADER_BYTES + compressed.length);
+		}
+		direct.clear();
+		direct.putInt(FRAME_MAGIC);
+		direct.putInt(compressedLength);
+		direct.putInt(rawLength);
+		direct.put(compressed, 0, compressedLength);
+		direct.flip();
+		while(direct.hasRemaining()) {
+			channel.write(direct);
+		}
+		framesWritten++;
+	}
+
+	/**
+	 * A reusable slot holding the belief state for one step.
+	 */
+	private static class Frame {
+		int step;
+		BeliefSnapshot belief;
+		int numPeasants;
+		int peasants[] = new int[12];
+
+		void addPeasant(int id, int x, int y) {
+			if(peasants.length < (numPeasants + 1) * 3) {
+				int grown[] = new int[peasants.length * 2];
+				System.arraycopy(peasants, 0, grown, 0, peasants.length);
+				peasants = grown;
+			}
+			peasants[numPeasants * 3] = id;
+			peasants[numPeasants * 3 + 1] = x;
+			peasants[numPeasants * 3 + 2] = y;
+			numPeasants++;
+		}
+	}
+}
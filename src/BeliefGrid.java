@@ -0,0 +1,121 @@
+/**
+ * The agent's belief about the board: the probability of a tower at every
+ * location, which locations have been seen, and how often a peasant has
+ * stood on and been hit at each location.
+ *
+ * DOUBLE keeps the original full-precision layout. FLOAT and LOG16 store the
+ * probabilities in 32 or 16 bits, the counters in saturating 16 bit cells and
+ * the seen flags as packed bits.
+ */
+public abstract class BeliefGrid {
+
+	public enum Precision {
+		DOUBLE, FLOAT, LOG16
+	}
+
+	protected final int columns;
+	protected final int rows;
+	private boolean needsClamp = false;
+
+	protected BeliefGrid(int columns, int rows) {
+		this.columns = columns;
+		this.rows = rows;
+	}
+
+	public static BeliefGrid create(Precision precision, int columns, int rows) {
+		if(precision == Precision.DOUBLE) {
+			return new DoubleBeliefGrid(columns, rows);
+		}
+		return new CompactBeliefGrid(precision, columns, rows);
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public abstract double getProb(int x, int y);
+
+	public abstract void setProb(int x, int y, double value);
+
+	public abstract boolean hasSeen(int x, int y);
+
+	public abstract void setSeen(int x, int y);
+
+	public abstract int getVisits(int x, int y);
+
+	public abstract void addVisit(int x, int y);
+
+	public abstract int getHits(int x, int y);
+
+	public abstract void addHit(int x, int y);
+
+	/**
+	 * 
+	 * @return Approximate number of bytes the grid's storage takes up
+	 */
+	public abstract long sizeInBytes();
+
+	/**
+	 * True when some unseen probability may lie outside the clamped range,
+	 * meaning the next full clamping pass can change values.
+	 */
+	public boolean needsClamp() {
+		return needsClamp;
+	}
+
+	public void setNeedsClamp(boolean needsClamp) {
+		this.needsClamp = needsClamp;
+	}
+
+	/**
+	 * 
+	 * @return An independent copy of the grid with the same storage precision
+	 */
+	public abstract BeliefGrid copy();
+
+	/**
+	 * Forgets everything and sets every probability to the prior.
+	 */
+	public void reset(double prior) {
+		clear();
+		for(int i = 0; i < columns; i++) {
+			for(int j = 0; j < rows; j++) {
+				setProb(i, j, prior);
+			}
+		}
+		needsClamp = false;
+	}
+
+	protected abstract void clear();
+
+	/**
+	 * Copies the probabilities and seen flags into full-precision arrays of the grid's size.
+	 */
+	public void copyTo(double towerProb[][], boolean hasSeen[][]) {
+		for(int i = 0; i < columns; i++) {
+			for(int j = 0; j < rows; j++) {
+				towerProb[i][j] = getProb(i, j);
+				hasSeen[i][j] = hasSeen(i, j);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the probabilities and seen flags with the given ones. Counters are left alone.
+	 */
+	public void copyFrom(double towerProb[][], boolean hasSeen[][]) {
+		for(int i = 0; i < columns; i++) {
+			for(int j = 0; j < rows; j++) {
+				setProb(i, j, towerProb[i][j]);
+				if(hasSeen[i][j]) {
+					setSeen(i, j);
+				}
+			}
+		}
+		needsClamp = true;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * A copy-on-write view of a belief grid at one moment. The grid is only
+ * copied once someone needs it to diverge: either the reader asks for its
+ * copy, or the owner is about to change the grid and detaches first.
+ * Whichever comes first makes the copy; the other gets it for free.
+ */
+public class BeliefSnapshot {
+	private BeliefGrid source;
+	private BeliefGrid copy;
+
+	public BeliefSnapshot(BeliefGrid source) {
+		this.source = source;
+	}
+
+	/**
+	 * 
+	 * @return The snapshot's own copy of the grid, made on first use
+	 */
+	public synchronized BeliefGrid get() {
+		if(copy == null) {
+			copy = source.copy();
+			source = null;
+		}
+		return copy;
+	}
+
+	/**
+	 * Must be called by the owner of the source grid before changing it.
+	 */
+	public void detach() {
+		get();
+	}
+}
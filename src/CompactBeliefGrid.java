@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * Belief grid stored in flat reduced-precision arrays.
+ *
+ * FLOAT keeps the probabilities as floats. LOG16 keeps them as 16 bit codes on a
+ * base 2 log scale with 2048 steps per halving: code 0 is exactly 0 and code
+ * 61440 is exactly 1, which covers 2^-30 up to just under 4 with a relative error
+ * below 0.04%. Both round a value that has no exact code up to the next one that
+ * is stored, never down, so 0 and 1 stay exact and a probability clamped to the
+ * agent's floor reads back at or just above the floor rather than falling below
+ * it and being clamped to 0 by the next pass.
+ * Visit and hit counters saturate at 65535.
+ */
+public class CompactBeliefGrid extends BeliefGrid {
+	private static final int LOG_STEPS = 2048;
+	private static final int LOG_ONE = 30 * LOG_STEPS;
+	private static final double LOG_SCALE = LOG_STEPS / Math.log(2);
+	private static final double STEP_VALUES[] = new double[LOG_STEPS];
+	static {
+		for(int i = 0; i < LOG_STEPS; i++) {
+			STEP_VALUES[i] = Math.pow(2, (double)i / LOG_STEPS);
+		}
+	}
+
+	private final boolean logScale;
+	private final float floatProb[];
+	private final char logProb[];
+	private final long seen[];
+	private final char numVisits[];
+	private final char numHits[];
+
+	public CompactBeliefGrid(Precision precision, int columns, int rows) {
+		super(columns, rows);
+		int cells = columns * rows;
+		logScale = precision == Precision.LOG16;
+		floatProb = logScale ? null : new float[cells];
+		logProb = logScale ? new char[cells] : null;
+		seen = new long[(cells + 63) / 64];
+		numVisits = new char[cells];
+		numHits = new char[cells];
+	}
+
+	private CompactBeliefGrid(CompactBeliefGrid other) {
+		super(other.columns, other.rows);
+		logScale = other.logScale;
+		floatProb = other.floatProb == null ? null : other.floatProb.clone();
+		logProb = other.logProb == null ? null : other.logProb.clone();
+		seen = other.seen.clone();
+		numVisits = other.numVisits.clone();
+		numHits = other.numHits.clone();
+		setNeedsClamp(other.needsClamp());
+	}
+
+	@Override
+	public BeliefGrid copy() {
+		return new CompactBeliefGrid(this);
+	}
+
+	@Override
+	public double getProb(int x, int y) {
+		int cell = x * rows + y;
+		if(logScale) {
+			return decode(logProb[cell]);
+		}
+		return floatProb[cell];
+	}
+
+	@Override
+	public void setProb(int x, int y, double value) {
+		int cell = x * rows + y;
+		if(logScale) {
+			logProb[cell] = encode(value);
+		} else {
+			float stored = (float)value;
+			floatProb[cell] = stored < value ? Math.nextUp(stored) : stored;
+		}
+	}
+
+	private static char encode(double value) {
+		if(!(value > 0)) {
+			return 0;
+		}
+		long code = Math.round(LOG_ONE + LOG_SCALE * Math.log(value));
+		if(code < 1) {
+			return 0;
+		}
+		if(code < Character.MAX_VALUE && decode((char)code) < value) {
+			code++;
+		}
+		return (char)Math.min(code, Character.MAX_VALUE);
+	}
+
+	private static double decode(char code) {
+		if(code == 0) {
+			return 0;
+		}
+		return Math.scalb(STEP_VALUES[code % LOG_STEPS], code / LOG_STEPS - LOG_ONE / LOG_STEPS);
+	}
+
+	@Override
+	public boolean hasSeen(int x, int y) {
+		int cell = x * rows + y;
+		return (seen[cell >>> 6] & (1L << cell)) != 0;
+	}
+
+	@Override
+	public void setSeen(int x, int y) {
+		int cell = x * rows + y;
+		seen[cell >>> 6] |= 1L << cell;
+	}
+
+	@Override
+	public int getVisits(int x, int y) {
+		return numVisits[x * rows + y];
+	}
+
+	@Override
+	public void addVisit(int x, int y) {
+		int cell = x * rows + y;
+		if(numVisits[cell] != Character.MAX_VALUE) {
+			numVisits[cell]++;
+		}
+	}
+
+	@Override
+	public int getHits(int x, int y) {
+		return numHits[x * rows + y];
+	}
+
+	@Override
+	public void addHit(int x, int y) {
+		int cell = x * rows + y;
+		if(numHits[cell] != Character.MAX_VALUE) {
+			numHits[cell]++;
+		}
+	}
+
+	@Override
+	public long sizeInBytes() {
+		long cells = (long)columns * rows;
+		return cells * ((logScale ? 2 : 4) + 2 + 2) + seen.length * 8L;
+	}
+
+	@Override
+	protected void clear() {
+		Arrays.fill(seen, 0L);
+		Arrays.fill(numVisits, (char)0);
+		Arrays.fill(numHits, (char)0);
+	}
+}
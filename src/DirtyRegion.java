@@ -0,0 +1,96 @@
+/**
+ * The cells of a grid that changed since it was last cleared, kept as a few
+ * bounding rectangles. A change that touches one of the rectangles grows it;
+ * a change far from all of them gets its own rectangle, so two changes at
+ * opposite ends of the board do not mark everything in between. Once every
+ * rectangle is in use the change joins the rectangle it grows the least.
+ */
+public class DirtyRegion {
+	private static final int MAX_RECTANGLES = 8;
+
+	private final int minX[] = new int[MAX_RECTANGLES];
+	private final int minY[] = new int[MAX_RECTANGLES];
+	private final int maxX[] = new int[MAX_RECTANGLES];
+	private final int maxY[] = new int[MAX_RECTANGLES];
+	private int count;
+
+	public DirtyRegion() {
+		clear();
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public boolean isClean() {
+		return count == 0;
+	}
+
+	public void mark(int x, int y) {
+		mark(x, y, x, y);
+	}
+
+	/**
+	 * Adds the rectangle (x0, y0) to (x1, y1), inclusive, to the region.
+	 */
+	public void mark(int x0, int y0, int x1, int y1) {
+		int best = -1;
+		long bestGrowth = Long.MAX_VALUE;
+		for(int i = 0; i < count; i++) {
+			if(touches(i, x0, y0, x1, y1)) {
+				best = i;
+				break;
+			}
+			long growth = area(Math.min(x0, minX[i]), Math.min(y0, minY[i]), Math.max(x1, maxX[i]), Math.max(y1, maxY[i]))
+					- area(minX[i], minY[i], maxX[i], maxY[i]);
+			if(growth < bestGrowth) {
+				bestGrowth = growth;
+				best = i;
+			}
+		}
+		if(best == -1 || (count < MAX_RECTANGLES && !touches(best, x0, y0, x1, y1))) {
+			minX[count] = x0;
+			minY[count] = y0;
+			maxX[count] = x1;
+			maxY[count] = y1;
+			count++;
+			return;
+		}
+		minX[best] = Math.min(minX[best], x0);
+		minY[best] = Math.min(minY[best], y0);
+		maxX[best] = Math.max(maxX[best], x1);
+		maxY[best] = Math.max(maxY[best], y1);
+	}
+
+	private boolean touches(int i, int x0, int y0, int x1, int y1) {
+		return x0 <= maxX[i] + 1 && x1 >= minX[i] - 1 && y0 <= maxY[i] + 1 && y1 >= minY[i] - 1;
+	}
+
+	private static long area(int x0, int y0, int x1, int y1) {
+		return (long)(x1 - x0 + 1) * (y1 - y0 + 1);
+	}
+
+	/**
+	 *
+	 * @return The number of rectangles the region is made of
+	 */
+	public int size() {
+		return count;
+	}
+
+	public int getMinX(int rectangle) {
+		return minX[rectangle];
+	}
+
+	public int getMinY(int rectangle) {
+		return minY[rectangle];
+	}
+
+	public int getMaxX(int rectangle) {
+		return maxX[rectangle];
+	}
+
+	public int getMaxY(int rectangle) {
+		return maxY[rectangle];
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Belief grid backed by full-precision two dimensional arrays.
+ */
+public class DoubleBeliefGrid extends BeliefGrid {
+	private final double towerProb[][];
+	private final boolean hasSeen[][];
+	private final int numVisits[][];
+	private final int numHits[][];
+
+	public DoubleBeliefGrid(int columns, int rows) {
+		super(columns, rows);
+		towerProb = new double[columns][rows];
+		hasSeen = new boolean[columns][rows];
+		numVisits = new int[columns][rows];
+		numHits = new int[columns][rows];
+	}
+
+	@Override
+	public double getProb(int x, int y) {
+		return towerProb[x][y];
+	}
+
+	@Override
+	public void setProb(int x, int y, double value) {
+		towerProb[x][y] = value;
+	}
+
+	@Override
+	public boolean hasSeen(int x, int y) {
+		return hasSeen[x][y];
+	}
+
+	@Override
+	public void setSeen(int x, int y) {
+		hasSeen[x][y] = true;
+	}
+
+	@Override
+	public int getVisits(int x, int y) {
+		return numVisits[x][y];
+	}
+
+	@Override
+	public void addVisit(int x, int y) {
+		numVisits[x][y]++;
+	}
+
+	@Override
+	public int getHits(int x, int y) {
+		return numHits[x][y];
+	}
+
+	@Override
+	public void addHit(int x, int y) {
+		numHits[x][y]++;
+	}
+
+	@Override
+	public BeliefGrid copy() {
+		DoubleBeliefGrid copy = new DoubleBeliefGrid(columns, rows);
+		for(int i = 0; i < columns; i++) {
+			System.arraycopy(towerProb[i], 0, copy.towerProb[i], 0, rows);
+			System.arraycopy(hasSeen[i], 0, copy.hasSeen[i], 0, rows);
+			System.arraycopy(numVisits[i], 0, copy.numVisits[i], 0, rows);
+			System.arraycopy(numHits[i], 0, copy.numHits[i], 0, rows);
+		}
+		copy.setNeedsClamp(needsClamp());
+		return copy;
+	}
+
+	@Override
+	public long sizeInBytes() {
+		return (long)columns * rows * (8 + 1 + 4 + 4);
+	}
+
+	@Override
+	protected void clear() {
+		for(int i = 0; i < columns; i++) {
+			for(int j = 0; j < rows; j++) {
+				hasSeen[i][j] = false;
+				numVisits[i][j] = 0;
+				numHits[i][j] = 0;
+			}
+		}
+	}
+
+	@Override
+	public void copyTo(double towerProb[][], boolean hasSeen[][]) {
+		for(int i = 0; i < columns; i++) {
+			System.arraycopy(this.towerProb[i], 0, towerProb[i], 0, rows);
+			System.arraycopy(this.hasSeen[i], 0, hasSeen[i], 0, rows);
+		}
+	}
+}
@@ -2,6 +2,8 @@ import java.awt.Point;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import edu.cwru.sepia.action.Action;
+
 public class PreviousState {
 
 	private ArrayList<Integer> peasantIds = new ArrayList<Integer>();
@@ -9,6 +11,12 @@ public class PreviousState {
 	private HashMap<Integer, Point> peasantLocs = new HashMap<Integer, Point>();
 	private HashMap<Integer, Boolean[][]> hasCargo = new HashMap<Integer, Boolean[][]>();
 	private ArrayList<Integer> toRemove = new ArrayList<Integer>();
+	private HashMap<Integer, Point> observedLocs = new HashMap<Integer, Point>();
+	private HashMap<Integer, Integer> observedHP = new HashMap<Integer, Integer>();
+	private HashMap<Integer, Integer> observedCargo = new HashMap<Integer, Integer>();
+	private HashMap<Integer, Boolean> moved = new HashMap<Integer, Boolean>();
+	private HashMap<Integer, Boolean> changed = new HashMap<Integer, Boolean>();
+	private HashMap<Integer, Action> lastAction = new HashMap<Integer, Action>();
 	private int columns;
 	private int rows;
 	
@@ -50,6 +58,79 @@ public class PreviousState {
 	public Point getPeasantLoc(int id) {
 		return peasantLocs.get(id);
 	}
+	
+	/**
+	 * 
+	 * @param id - ID of the peasant that is about to move.
+	 * @param x - The x coordinate the peasant is moving to.
+	 * @param y - The y coordinate the peasant is moving to.
+	 */
+	public void setPeasantLoc(int id, int x, int y) {
+		Point point = peasantLocs.get(id);
+		if(point == null) {
+			peasantLocs.put(id, new Point(x, y));
+		} else {
+			point.x = x;
+			point.y = y;
+		}
+	}
+	
+	/**
+	 * Records what was observed about a peasant this step and sets its change flags.
+	 * The first observation of a peasant always counts as a change.
+	 * @param id - ID of the observed peasant.
+	 * @param x - The peasant's x coordinate.
+	 * @param y - The peasant's y coordinate.
+	 * @param HP - The peasant's HP.
+	 * @param cargo - The amount the peasant is carrying.
+	 * @return True if the position, HP or cargo differ from the last observation.
+	 */
+	public boolean observe(int id, int x, int y, int HP, int cargo) {
+		Point loc = observedLocs.get(id);
+		boolean hasMoved = loc == null || loc.x != x || loc.y != y;
+		boolean hasChanged = hasMoved
+				|| observedHP.get(id) != HP
+				|| observedCargo.get(id) != cargo;
+		if(loc == null) {
+			observedLocs.put(id, new Point(x, y));
+		} else {
+			loc.x = x;
+			loc.y = y;
+		}
+		observedHP.put(id, HP);
+		observedCargo.put(id, cargo);
+		moved.put(id, hasMoved);
+		changed.put(id, hasChanged);
+		return hasChanged;
+	}
+	
+	/**
+	 * 
+	 * @param id - The id of the peasant you are concerned with.
+	 * @return True if the peasant's position changed at the last observation.
+	 */
+	public boolean hasMoved(int id) {
+		Boolean value = moved.get(id);
+		return value == null || value;
+	}
+	
+	/**
+	 * 
+	 * @param id - The id of the peasant you are concerned with.
+	 * @return True if the peasant's position, HP or cargo changed at the last observation.
+	 */
+	public boolean hasChanged(int id) {
+		Boolean value = changed.get(id);
+		return value == null || value;
+	}
+	
+	public Action getLastAction(int id) {
+		return lastAction.get(id);
+	}
+	
+	public void setLastAction(int id, Action action) {
+		lastAction.put(id, action);
+	}
 
 	public ArrayList<Integer> getPeasantIds() {
 		return peasantIds;
@@ -73,6 +154,12 @@ public class PreviousState {
 			if(hasCargo.containsKey(id)) {
 				hasCargo.remove(id);
 			}
+			observedLocs.remove(id);
+			observedHP.remove(id);
+			observedCargo.remove(id);
+			moved.remove(id);
+			changed.remove(id);
+			lastAction.remove(id);
 		}
 		toRemove = new ArrayList<Integer>();
 	}
@@ -21,12 +21,22 @@
 
 
 import java.awt.Point;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +47,7 @@ import edu.cwru.sepia.action.ProductionAction;
 import edu.cwru.sepia.action.TargetedAction;
 import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
 import edu.cwru.sepia.environment.model.state.ResourceType;
 import edu.cwru.sepia.environment.model.state.State.StateView;
 import edu.cwru.sepia.environment.model.state.Template.TemplateView;
@@ -53,18 +64,55 @@ public class ProbAgent extends Agent {
 	private static final Logger logger = Logger.getLogger(ProbAgent.class.getCanonicalName());
 	private static final double APPROX_TOWER_DENSITY = 0.0085;
 	private static final double MAX_EXPLORE_FACTOR = .3;
+	private static final int EXPORT_QUEUE_FRAMES = 8;
+	private static final double TOWER_ACCURACY = 0.75;
+	private static final double MIN_PROB = .000001;
+	private static final double SNAP_PROB = .5;
+	private static final long DEFAULT_BELIEF_CACHE_BYTES = 64L * 1024 * 1024;
+	private static final BeliefCache beliefCache = new BeliefCache(DEFAULT_BELIEF_CACHE_BYTES);
 
 	private int boardSizeRow;
 	private int boardSizeColumn;
-	private boolean hasSeen[][];
-	private double towerProb[][];
-	private int numVisits[][];
-	private int numHits[][];
+	private BeliefGrid belief;
+	private BeliefGrid shadow;
+	private BeliefGrid.Precision precision = BeliefGrid.Precision.DOUBLE;
+	private boolean validatePrecision = false;
+	private long validatedMoves;
+	private long divergentMoves;
+	private Random random = new Random();
+	private ReservationTable reservations;
+	private Point townhallLoc = new Point();
+	
+	private boolean pipelined = false;
+	private transient ExecutorService planner;
+	private transient Future<HashMap<Integer, Direction>> pendingMoves;
+	private SpeculativePlan speculation;
+	private BeliefSnapshot exported;
+	private HashMap<Integer, Direction> plannedMoves;
+	private boolean observationSurprise;
+	private long speculationHits;
+	private long speculationMisses;
+	private boolean obstacleGrid[][];
+	private int obstacleUnits;
+	private int obstacleResources;
+	private double riskCache[][];
+	private boolean riskValid[][];
+	private DirtyRegion beliefDirty = new DirtyRegion();
+	
+	private int visionRadius = 2;
+	private int towerRadius = 4;
+	private StencilKernel.Shape towerShape = StencilKernel.Shape.SQUARE;
+	private transient StencilKernel visionKernel;
+	private transient StencilKernel towerKernel;
+	private transient StencilKernel.CellVisitor seenVisitor;
+	private long mapFingerprint;
 	private boolean seenGold = false;
 	private Point goldLoc = new Point();
 	private Integer goldId;
 	
 	private boolean producedPeasant;
+	private boolean exitOnTerminal = false;
+	private boolean warnedIgnoredOptions = false;
 	
 	private PreviousState prevState;
 	
@@ -76,6 +124,10 @@ public class ProbAgent extends Agent {
 	private Direction directions[] = new Direction[8];
 	private double avgBoardSize;
 	private double exploreCoeff;
+	
+	private File exportDir;
+	private int exportInterval = 10;
+	private transient BeliefExporter exporter;
 
 	public ProbAgent(int playernum, String[] arguments) {
 		super(playernum);
@@ -85,6 +137,32 @@ public class ProbAgent extends Agent {
 		
 		producedPeasant = false;
 		
+		if(arguments != null) {
+			for(String argument : arguments) {
+				if(argument.startsWith("exportDir=")) {
+					exportDir = new File(argument.substring("exportDir=".length()));
+				} else if(argument.startsWith("exportInterval=")) {
+					exportInterval = Math.max(1, Integer.parseInt(argument.substring("exportInterval=".length())));
+				} else if(argument.startsWith("visionRadius=")) {
+					visionRadius = parseRadius(argument, "visionRadius=");
+				} else if(argument.startsWith("towerRadius=")) {
+					towerRadius = parseRadius(argument, "towerRadius=");
+				} else if(argument.startsWith("towerShape=")) {
+					towerShape = StencilKernel.Shape.valueOf(argument.substring("towerShape=".length()).toUpperCase());
+				} else if(argument.startsWith("beliefCacheBytes=")) {
+					beliefCache.setBudget(Long.parseLong(argument.substring("beliefCacheBytes=".length())));
+				} else if(argument.startsWith("beliefPrecision=")) {
+					precision = BeliefGrid.Precision.valueOf(argument.substring("beliefPrecision=".length()).toUpperCase());
+				} else if(argument.equals("validatePrecision")) {
+					validatePrecision = true;
+				} else if(argument.equals("pipelined")) {
+					pipelined = true;
+				} else if(argument.equals("exitOnTerminal")) {
+					exitOnTerminal = true;
+				}
+			}
+		}
+		
 		directions[0] = Direction.NORTHEAST;
 		directions[1] = Direction.SOUTHEAST;
 		directions[2] = Direction.SOUTHWEST;
@@ -96,6 +174,21 @@ public class ProbAgent extends Agent {
 	}
 
 	
+	/**
+	 * 
+	 * @param argument - The agent argument
+	 * @param name - The argument's name, including the '='
+	 * @return The radius given in the argument
+	 * @throws IllegalArgumentException If the radius is negative
+	 */
+	private static int parseRadius(String argument, String name) {
+		int radius = Integer.parseInt(argument.substring(name.length()));
+		if(radius < 0) {
+			throw new IllegalArgumentException(name + radius + ": the radius must not be negative");
+		}
+		return radius;
+	}
+	
 	@Override
 	public Map<Integer, Action> initialStep(StateView newState, History.HistoryView statehistory) {
 		step = 0;
@@ -110,20 +203,44 @@ public class ProbAgent extends Agent {
 		goldLoc.x = boardSizeColumn - 5;
 		goldLoc.y = 2;
 		
-		hasSeen = new boolean[boardSizeColumn][boardSizeRow];
-		towerProb = new double[boardSizeColumn][boardSizeRow];
-		numVisits = new int[boardSizeColumn][boardSizeRow];
-		numHits = new int[boardSizeColumn][boardSizeRow];
-		
-		for(int i = 0; i < boardSizeColumn; i++) {
-			for(int j = 0; j < boardSizeRow; j++) {
-				hasSeen[i][j] = false;
-				towerProb[i][j] = APPROX_TOWER_DENSITY;
-				numVisits[i][j] = 0;
-				numHits[i][j] = 0;
+		if(!warnedIgnoredOptions) {
+			if(validatePrecision && precision == BeliefGrid.Precision.DOUBLE) {
+				logger.warning("validatePrecision is ignored: the belief already uses DOUBLE precision");
+			}
+			if(pipelined && validatePrecision && precision != BeliefGrid.Precision.DOUBLE) {
+				logger.warning("pipelined is ignored: it cannot be combined with validatePrecision");
 			}
+			warnedIgnoredOptions = true;
 		}
 		
+		belief = BeliefGrid.create(precision, boardSizeColumn, boardSizeRow);
+		belief.reset(APPROX_TOWER_DENSITY);
+		shadow = null;
+		if(validatePrecision && precision != BeliefGrid.Precision.DOUBLE) {
+			shadow = BeliefGrid.create(BeliefGrid.Precision.DOUBLE, boardSizeColumn, boardSizeRow);
+			shadow.reset(APPROX_TOWER_DENSITY);
+		}
+		validatedMoves = 0;
+		divergentMoves = 0;
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Belief state uses " + precision + " storage, " + belief.sizeInBytes() + " bytes");
+		}
+		reservations = new ReservationTable();
+		riskCache = new double[boardSizeColumn][boardSizeRow];
+		riskValid = new boolean[boardSizeColumn][boardSizeRow];
+		beliefDirty.clear();
+		
+		visionKernel = new StencilKernel(visionRadius, StencilKernel.Shape.SQUARE);
+		visionKernel.bind(boardSizeColumn, boardSizeRow);
+		towerKernel = new StencilKernel(towerRadius, towerShape);
+		towerKernel.bind(boardSizeColumn, boardSizeRow);
+		seenVisitor = new StencilKernel.CellVisitor() {
+			@Override
+			public void visit(int x, int y, double weight) {
+				setSeen(x, y);
+			}
+		};
+		
 		List<Integer> allUnitIds = currentState.getAllUnitIds();
 		HashMap<Integer, Integer> peasantHP = new HashMap<Integer, Integer>();
 		HashMap<Integer, Point> peasantLoc = new HashMap<Integer, Point>();
@@ -146,7 +263,41 @@ public class ProbAgent extends Agent {
 			}
 		}
 		
-		prevState = new PreviousState(peasantIds, peasantHP, peasantLoc);
+		UnitView townhall = currentState.getUnit(townhallIds.get(0));
+		townhallLoc = new Point(townhall.getXPosition(), townhall.getYPosition());
+		
+		mapFingerprint = fingerprintMap();
+		if(beliefCache.seed(mapFingerprint, belief)) {
+			if(shadow != null) {
+				beliefCache.seed(mapFingerprint, shadow, false);
+			}
+			if(logger.isLoggable(Level.FINE)) {
+				logger.fine("Seeded beliefs from an earlier episode on this map");
+			}
+		}
+		
+		prevState = new PreviousState(peasantIds, peasantHP, peasantLoc, boardSizeColumn, boardSizeRow);
+		
+		if(exportDir != null && exporter == null) {
+			exporter = new BeliefExporter(exportDir, EXPORT_QUEUE_FRAMES);
+			exporter.start();
+		}
+		
+		cancelSpeculation();
+		obstacleGrid = null;
+		exported = null;
+		speculationHits = 0;
+		speculationMisses = 0;
+		if(pipelined && shadow == null && planner == null) {
+			planner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "speculative-planner");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 		
 		return middleStep(newState, statehistory);
 	}
@@ -160,6 +311,20 @@ public class ProbAgent extends Agent {
 		}
 		Map<Integer, Action> builder = new HashMap<Integer, Action>();
 		
+		//the exporter and the speculative planner keep their own copy of the belief from here on
+		SpeculativePlan plan = speculation;
+		Future<HashMap<Integer, Direction>> pending = pendingMoves;
+		speculation = null;
+		pendingMoves = null;
+		if(plan != null) {
+			plan.belief.detach();
+		}
+		if(exported != null) {
+			exported.detach();
+			exported = null;
+		}
+		observationSurprise = false;
+		
 		//ANALYZE PHASE
 		
 		prevState.removeMarked();
@@ -179,14 +344,13 @@ public class ProbAgent extends Agent {
 			UnitView peasant = currentState.getUnit(peasantID);
 			prevState.addPeasant(peasantID, peasant.getHP(), new Point(peasant.getXPosition(), peasant.getYPosition()));
 			producedPeasant = false;
+			observationSurprise = true;
 		}
 		
 		for(int peasantID : prevState.getPeasantIds()) {
 			if(!currentState.getUnitIds(0).contains(peasantID)) {		//peasant dies
 				Point peasantLoc = prevState.getPeasantLoc(peasantID);
-				numHits[peasantLoc.x][peasantLoc.y]++;
-				numVisits[peasantLoc.x][peasantLoc.y]++;
-				updateTowerProbs(true, peasantLoc.x, peasantLoc.y);
+				recordVisit(true, peasantLoc.x, peasantLoc.y);
 				
 				List<Integer> allUnitIds = currentState.getAllUnitIds();
 				peasantIds = new ArrayList<Integer>();
@@ -205,24 +369,33 @@ public class ProbAgent extends Agent {
 			UnitView peasant = currentState.getUnit(peasantID);
 			int peasantX = peasant.getXPosition();
 			int peasantY = peasant.getYPosition();
-			setSeenLocations(peasantID, peasantX, peasantY);
-			numVisits[peasantX][peasantY]++;
+			prevState.observe(peasantID, peasantX, peasantY, peasant.getHP(), peasant.getCargoAmount());
+			if(prevState.hasMoved(peasantID)) { //nothing new comes into view while standing still
+				setSeenLocations(peasantID, peasantX, peasantY);
+			}
 			if(prevState.getPeasantHP(peasantID) > peasant.getHP()) { //got hit
-				numHits[peasantX][peasantY]++;
 				prevState.setPeasantHP(peasantID, peasant.getHP());
-				updateTowerProbs(true, peasantX, peasantY);
+				recordVisit(true, peasantX, peasantY);
 			} else { //didn't get hit
-				updateTowerProbs(false, peasantX, peasantY);
+				recordVisit(false, peasantX, peasantY);
 			}
 		}	
 
 		//you failed
 		if(peasantIds.size() == 0) {
-			terminalStep(currentState, statehistory);
+			if(pending != null) {
+				pending.cancel(true);
+			}
+			if(exitOnTerminal) {
+				terminalStep(currentState, statehistory);
+			}
+			return builder;
 		}
-		int peasantID = peasantIds.get(0);
-		UnitView peasant = currentState.getUnit(peasantID);
 		//DECIDE MOVE PHASE
+		plannedMoves = adoptSpeculation(plan, pending);
+		if(!beliefDirty.isClean()) {
+			invalidateRisk();
+		}
 		Action b = null;
 		
 		//townhall actions
@@ -234,18 +407,41 @@ public class ProbAgent extends Agent {
 			producedPeasant = true;
 		}
 		
-		//peasant actions
-		if(seenGold && peasant.getCargoAmount() == 0 && adjacentToGold(peasant)) { //adjacent to gold and has nothing in hand, gather
-			b = new TargetedAction(peasantID, ActionType.COMPOUNDGATHER, goldId);
-		} else if(peasant.getCargoAmount() != 0 && adjacentToTownhall(peasant)) { //adjacent to townhall and has something in hand, deposit
-			b = new TargetedAction(peasantID, ActionType.COMPOUNDDEPOSIT, townhallIds.get(0));
-		} else { //move somewhere
-			Direction toMove = findNextMove(peasantID);
-			b = new DirectedAction(peasantID, ActionType.PRIMITIVEMOVE, toMove);
+		//peasant actions, planned in priority order so later peasants route around earlier ones
+		reservations.advance(step + 1);
+		for(int peasantID : planningOrder()) {
+			UnitView peasant = currentState.getUnit(peasantID);
+			Action lastAction = prevState.getLastAction(peasantID);
+			if(lastAction != null && lastAction.getType() != ActionType.PRIMITIVEMOVE
+					&& !prevState.hasChanged(peasantID)) { //still gathering or depositing, which only depends on the peasant's own state
+				b = lastAction;
+			} else if(seenGold && peasant.getCargoAmount() == 0 && adjacentToGold(peasant)) { //adjacent to gold and has nothing in hand, gather
+				b = new TargetedAction(peasantID, ActionType.COMPOUNDGATHER, goldId);
+			} else if(peasant.getCargoAmount() != 0 && adjacentToTownhall(peasant)) { //adjacent to townhall and has something in hand, deposit
+				b = new TargetedAction(peasantID, ActionType.COMPOUNDDEPOSIT, townhallIds.get(0));
+			} else { //move somewhere
+				Direction toMove = findNextMove(peasantID);
+				b = new DirectedAction(peasantID, ActionType.PRIMITIVEMOVE, toMove);
+			}
+			
+			if(b.getType() == ActionType.PRIMITIVEMOVE) { //gathering and depositing happen in place, on a location already taken
+				Point next = prevState.getPeasantLoc(peasantID);
+				if(!reservations.reserve(next.x, next.y, step + 1, peasantID) && logger.isLoggable(Level.FINE)) {
+					logger.fine("Step " + step + ": peasant " + peasantID + " moves onto a location claimed by another peasant");
+				}
+			}
+			builder.put(peasantID, b);
+			prevState.setLastAction(peasantID, b);
+		}
+		if(exporter != null && step % exportInterval == 0) {
+			exported = new BeliefSnapshot(belief);
+			if(!exporter.offer(step, exported, peasantIds, currentState)) { //dropped, nobody will read the snapshot
+				exported = null;
+			}
+		}
+		if(planner != null && !producedPeasant) {
+			speculate();
 		}
-		
-		builder.put(peasantID, b);
-//		printTowerProbs();
 
 		//EXECUTE MOVE PHASE
 		
@@ -258,13 +454,82 @@ public class ProbAgent extends Agent {
 		if(logger.isLoggable(Level.FINE)) {
 			logger.fine("=> Step: " + step);
 		}
+		
+		if(exporter != null) {
+			exporter.shutdown();
+			exporter = null;
+		}
+		cancelSpeculation();
+		if(planner != null) {
+			planner.shutdownNow();
+			planner = null;
+			if(logger.isLoggable(Level.FINE)) {
+				logger.fine("Speculative plans used " + speculationHits + " times, discarded " + speculationMisses);
+			}
+		}
+		beliefCache.store(mapFingerprint, belief);
+		if(shadow != null) {
+			logger.info("Reduced precision belief chose a different move " + divergentMoves 
+					+ " times out of " + validatedMoves);
+		}
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Belief cache: " + beliefCache.getHits() + " hits, " + beliefCache.getMisses() + " misses, "
+					+ beliefCache.size() + " maps");
+		}
 
 		if(logger.isLoggable(Level.FINE)) {
 			logger.fine("Congratulations! You have finished the task!");
 		} else {
 			logger.fine("Congratualations! All your peasants died!");
-			System.exit(0);
+			if(exitOnTerminal) { //a one-shot run can take the JVM down with the episode
+				System.exit(0);
+			}
+		}
+	}
+
+	/**
+	 * Peasants carrying cargo are planned first, since they are on their way
+	 * to deposit it, then the rest in order of ID.
+	 * @return The living peasants in the order their moves are planned
+	 */
+	private List<Integer> planningOrder() {
+		HashMap<Integer, Integer> cargo = new HashMap<Integer, Integer>();
+		for(int peasantID : peasantIds) {
+			cargo.put(peasantID, currentState.getUnit(peasantID).getCargoAmount());
+		}
+		return planningOrder(peasantIds, cargo);
+	}
+	
+	private static List<Integer> planningOrder(List<Integer> ids, final Map<Integer, Integer> cargo) {
+		List<Integer> order = new ArrayList<Integer>(ids);
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				boolean aCarries = cargo.get(a) > 0;
+				boolean bCarries = cargo.get(b) > 0;
+				if(aCarries != bCarries) {
+					return aCarries ? -1 : 1;
+				}
+				return a.compareTo(b);
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * 
+	 * @return Fingerprint of the map from its size, the townhall and the resources in view
+	 */
+	private long fingerprintMap() {
+		UnitView townhall = currentState.getUnit(townhallIds.get(0));
+		List<Integer> resourceIds = currentState.getAllResourceIds();
+		int resources[][] = new int[resourceIds.size()][];
+		for(int i = 0; i < resources.length; i++) {
+			ResourceView resource = currentState.getResourceNode(resourceIds.get(i));
+			resources[i] = new int[] {resource.getXPosition(), resource.getYPosition(), resource.getType().ordinal()};
 		}
+		return BeliefCache.fingerprint(boardSizeColumn, boardSizeRow, 
+				townhall.getXPosition(), townhall.getYPosition(), resources);
 	}
 
 	/**
@@ -312,33 +577,48 @@ public class ProbAgent extends Agent {
 	 */
 	private void setSeenLocations(int peasantId, int x, int y) {
 		//sets every location within range of sight to true
-		Point seen = new Point();
-		for(int i = -2; i <= 2; i++) {
-			for(int j = -2; j <= 2; j++) {
-				seen.x = x + i;
-				seen.y = y + j;
-				
-				if(currentState.inBounds(seen.x, seen.y)) {
-					hasSeen[seen.x][seen.y] = true;
-					Integer unitID = currentState.unitAt(seen.x, seen.y);
-					
-					if(currentState.isResourceAt(seen.x, seen.y)) {
-						Integer resource = currentState.resourceAt(seen.x, seen.y);
-						if(currentState.getResourceNode(resource).getType().toString().equals("GOLD_MINE")) {
-							seenGold = true;
-							goldLoc = new Point(seen.x, seen.y);
-							goldId = resource;
-						}
-						towerProb[seen.x][seen.y] = 0.0;
-					} else if(unitID != null 
-							&& unitID != townhallIds.get(0)
-							&& !peasantIds.contains(unitID)) {
-						towerProb[seen.x][seen.y] = 1.0;
-					} else {
-						towerProb[seen.x][seen.y] = 0.0;
-					}
+		visionKernel.apply(x, y, seenVisitor);
+	}
+	
+	/**
+	 * Marks a location in sight as seen and records what is there.
+	 * @param x - x location in sight
+	 * @param y - y location in sight
+	 */
+	private void setSeen(int x, int y) {
+		Integer unitID = currentState.unitAt(x, y);
+		double seenProb;
+		
+		if(currentState.isResourceAt(x, y)) {
+			Integer resource = currentState.resourceAt(x, y);
+			if(currentState.getResourceNode(resource).getType().toString().equals("GOLD_MINE")) {
+				if(!seenGold || goldLoc.x != x || goldLoc.y != y) {
+					beliefDirty.mark(x, y);
+					observationSurprise = true;
 				}
+				seenGold = true;
+				goldLoc = new Point(x, y);
+				goldId = resource;
 			}
+			seenProb = 0.0;
+		} else if(unitID != null 
+				&& unitID != townhallIds.get(0)
+				&& !peasantIds.contains(unitID)) {
+			seenProb = 1.0;
+		} else {
+			seenProb = 0.0;
+		}
+		if(seenProb == 1.0 && !belief.hasSeen(x, y)) {
+			observationSurprise = true;
+		}
+		belief.setSeen(x, y);
+		if(belief.getProb(x, y) != seenProb) {
+			belief.setProb(x, y, seenProb);
+			beliefDirty.mark(x, y);
+		}
+		if(shadow != null) {
+			shadow.setSeen(x, y);
+			shadow.setProb(x, y, seenProb);
 		}
 	}
 	
@@ -348,84 +628,145 @@ public class ProbAgent extends Agent {
 	 * @return The direction with the least probability of getting hit
 	 */
 	private Direction findNextMove(int peasantID) {
-		double minProb = 9999999;
-		Direction dirToMove = null;
-		
 		UnitView peasant = currentState.getUnit(peasantID);
 		int currentX = peasant.getXPosition();
 		int currentY = peasant.getYPosition();
+		boolean hasCargo = peasant.getCargoAmount() > 0;
 		
-		int newX = currentX;
-		int newY = currentY;
-		
-		int deltaX = 0;
-		int deltaY = 0;
-		for(Direction dir : directions) { 	
-			switch(dir) {
-			case NORTH:
-				deltaX = 0;
-				deltaY = -1;
-				break;
-			case NORTHEAST:
-				deltaX = 1;
-				deltaY = -1;
-				break;
-			case EAST:
-				deltaX = 1;
-				deltaY = 0;
-				break;
-			case SOUTHEAST:
-				deltaX = 1;
-				deltaY = 1;
-				break;
-			case SOUTH:
-				deltaX = 0;
-				deltaY = 1;
-				break;
-			case SOUTHWEST:
-				deltaX = -1;
-				deltaY = 1;
-				break;
-			case WEST:
-				deltaX = -1;
-				deltaY = 0;
-				break;
-			case NORTHWEST:
-				deltaX = -1;
-				deltaY = -1;
-				break;
+		Direction dirToMove;
+		if(plannedMoves != null && plannedMoves.containsKey(peasantID)) { //planned while the last step was simulated
+			dirToMove = plannedMoves.get(peasantID);
+		} else if(shadow == null) {
+			dirToMove = bestMove(belief, peasantID, currentX, currentY, hasCargo, 
+					blockedMoves(peasantID, currentX, currentY), goldLoc, random);
+		} else { //decide on both beliefs with the same random draws and compare
+			boolean blocked[] = blockedMoves(peasantID, currentX, currentY);
+			long seed = random.nextLong();
+			random.setSeed(seed);
+			dirToMove = bestMove(belief, peasantID, currentX, currentY, hasCargo, blocked, goldLoc, random);
+			random.setSeed(seed);
+			Direction shadowMove = bestMove(shadow, peasantID, currentX, currentY, hasCargo, blocked, goldLoc, random);
+			validatedMoves++;
+			if(shadowMove != dirToMove) {
+				divergentMoves++;
+				if(logger.isLoggable(Level.FINE)) {
+					logger.fine("Step " + step + ": " + precision + " belief moved " + dirToMove 
+							+ ", double belief moved " + shadowMove);
+				}
 			}
+		}
+		
+		prevState.setPeasantLoc(peasantID, currentX + deltaX(dirToMove), currentY + deltaY(dirToMove));
+		return dirToMove;
+	}
+	
+	/**
+	 * 
+	 * @param peasantID - The ID of the peasant you are concerned with
+	 * @param currentX - The peasant's x coordinate
+	 * @param currentY - The peasant's y coordinate
+	 * @return For each direction, true if the peasant cannot move that way next step
+	 */
+	private boolean[] blockedMoves(int peasantID, int currentX, int currentY) {
+		boolean blocked[] = new boolean[directions.length];
+		for(int k = 0; k < directions.length; k++) {
+			int x = currentX + deltaX(directions[k]);
+			int y = currentY + deltaY(directions[k]);
+			blocked[k] = !currentState.inBounds(x, y)
+					|| currentState.isResourceAt(x, y)
+					|| currentState.isUnitAt(x, y)
+					|| !reservations.isFree(x, y, step + 1, peasantID);
+		}
+		return blocked;
+	}
+	
+	/**
+	 * 
+	 * Only reads the belief grid and the board constants, so it can also run on the planner thread.
+	 * @param grid - The belief to decide on
+	 * @param peasantID - The ID of the peasant you are concerned with
+	 * @param currentX - The peasant's x coordinate
+	 * @param currentY - The peasant's y coordinate
+	 * @param hasCargo - True if the peasant is carrying something
+	 * @param blocked - For each direction, true if the peasant cannot move that way
+	 * @param gold - Where the gold is or is assumed to be
+	 * @param rng - Source of the objective function's random draws
+	 * @return The direction with the least probability of getting hit, null if every direction is blocked
+	 */
+	private Direction bestMove(BeliefGrid grid, int peasantID, int currentX, int currentY, boolean hasCargo, 
+			boolean blocked[], Point gold, Random rng) {
+		double minProb = 9999999;
+		Direction dirToMove = null;
+		
+		for(int k = 0; k < directions.length; k++) {
+			Direction dir = directions[k];
+			int deltaX = deltaX(dir);
+			int deltaY = deltaY(dir);
 			
-			boolean hasCargo = peasant.getCargoAmount() > 0;
-			if(!currentState.inBounds(currentX + deltaX, currentY + deltaY)
-					|| currentState.isResourceAt(currentX + deltaX, currentY + deltaY)
-					|| currentState.isUnitAt(currentX + deltaX, currentY + deltaY)) {
+			if(blocked[k]) {
 				continue;
 			}
 			
-			double currentProb = probOfGettingHit(currentX + deltaX, currentY + deltaY) 
-					+ objectiveFunction(peasantID, !hasCargo, currentX, currentY, currentX + deltaX, currentY + deltaY);
+			double currentProb = probOfGettingHit(grid, currentX + deltaX, currentY + deltaY) 
+					+ objectiveFunction(grid, peasantID, !hasCargo, currentX, currentY, currentX + deltaX, currentY + deltaY, gold, rng);
 			if(currentProb < minProb) {
 				minProb = currentProb;
 				dirToMove = dir;
-				newX = currentX + deltaX;
- 				newY = currentY + deltaY;
 			}
 		}
-		prevState.setPeasantLoc(peasantID, newX, newY);
 		return dirToMove;
 	}
+	
+	private static int deltaX(Direction dir) {
+		if(dir == null) {
+			return 0;
+		}
+		switch(dir) {
+		case NORTHEAST:
+		case EAST:
+		case SOUTHEAST:
+			return 1;
+		case SOUTHWEST:
+		case WEST:
+		case NORTHWEST:
+			return -1;
+		default:
+			return 0;
+		}
+	}
+	
+	private static int deltaY(Direction dir) {
+		if(dir == null) {
+			return 0;
+		}
+		switch(dir) {
+		case NORTH:
+		case NORTHEAST:
+		case NORTHWEST:
+			return -1;
+		case SOUTH:
+		case SOUTHEAST:
+		case SOUTHWEST:
+			return 1;
+		default:
+			return 0;
+		}
+	}
 
 	/**
 	 * 
+	 * @param grid - The belief to decide on
 	 * @param toGold - True if the peasant is moving towards the gold
 	 * @param currentX - The peasant's current x coordinate
 	 * @param currentY - The peasant's current y coordinate
 	 * @param nextX - The potential next x coordinate
 	 * @param nextY - The potential next y coordinate
+	 * @param gold - Where the gold is or is assumed to be
+	 * @param rng - Source of random draws
 	 * @return Factors in exploration, rather than just safety of next moves
 	 */
-	private double objectiveFunction(int peasantId, boolean toGold, int currentX, int currentY, int nextX, int nextY) {
+	private double objectiveFunction(BeliefGrid grid, int peasantId, boolean toGold, int currentX, int currentY, int nextX, int nextY, 
+			Point gold, Random rng) {
 		double objectiveValue = 0;
 		int currentDistance = 0;
 		int nextDistance = 0;
@@ -434,8 +775,8 @@ public class ProbAgent extends Agent {
 		
 		double reward = 0.5;
 		if(toGold) {
-			currentDistance = Math.abs(goldLoc.x - currentX) + Math.abs(goldLoc.y - currentY);
-			nextDistance = Math.abs(goldLoc.x - nextX) + Math.abs(goldLoc.y - nextY);
+			currentDistance = Math.abs(gold.x - currentX) + Math.abs(gold.y - currentY);
+			nextDistance = Math.abs(gold.x - nextX) + Math.abs(gold.y - nextY);
 			
 			//This next section is calculating the probability density of
 			//the spaces that are in the direction of the goal.
@@ -451,26 +792,26 @@ public class ProbAgent extends Agent {
 			for(int i = 0; i < boardSizeColumn; i++) {
 				for(int j = 0; j < boardSizeRow; j++) {
 					if(currentX < i) {
-						leftProb += towerProb[i][j];
+						leftProb += grid.getProb(i, j);
 						leftSquares++;
 					} else {
-						rightProb += towerProb[i][j];
+						rightProb += grid.getProb(i, j);
 						rightSquares++;
 					}
 					
 					if(currentY < j) {
-						belowProb += towerProb[i][j];
+						belowProb += grid.getProb(i, j);
 						belowSquares++;
 					} else {
-						aboveProb += towerProb[i][j];
+						aboveProb += grid.getProb(i, j);
 						aboveSquares++;
 					}
 				}
 			}
-			leftProb /= (leftSquares + Math.random() * 10);
-			rightProb /= (rightSquares + Math.random() * 10);
-			aboveProb /= (aboveSquares + Math.random() * 10);
-			belowProb /= (belowSquares + Math.random() * 10);
+			leftProb /= (leftSquares + rng.nextDouble() * 10);
+			rightProb /= (rightSquares + rng.nextDouble() * 10);
+			aboveProb /= (aboveSquares + rng.nextDouble() * 10);
+			belowProb /= (belowSquares + rng.nextDouble() * 10);
 			
 			if(leftProb <= rightProb
 					&& leftProb <= aboveProb
@@ -506,21 +847,21 @@ public class ProbAgent extends Agent {
 				}
 			}
 			
-			for(int i = currentX; i < goldLoc.x; i++) {
+			for(int i = currentX; i < gold.x; i++) {
 				for(int j = 0; j < boardSizeRow; j++) {
-					xProbs += towerProb[i][j];
+					xProbs += grid.getProb(i, j);
 				}
 			}
 			
-			xProbs /= (Math.abs(currentX - goldLoc.x) * boardSizeRow);
+			xProbs /= (Math.abs(currentX - gold.x) * boardSizeRow);
 
 			for(int i = 0; i < boardSizeColumn; i++) {
-				for(int j = goldLoc.y; j < currentY; j++) {
-					yProbs += towerProb[i][j];
+				for(int j = gold.y; j < currentY; j++) {
+					yProbs += grid.getProb(i, j);
 				}
 			}
 			
-			yProbs /= (boardSizeColumn * Math.abs(goldLoc.y - currentY));
+			yProbs /= (boardSizeColumn * Math.abs(gold.y - currentY));
 			
 			if(currentX < nextX) {
 				if(xProbs < yProbs) {
@@ -537,23 +878,22 @@ public class ProbAgent extends Agent {
 				}
 			}
 		} else {
-			UnitView townhall = currentState.getUnit(townhallIds.get(0));
-			currentDistance = Math.abs(townhall.getXPosition() - currentX) + Math.abs(townhall.getYPosition() - currentY);
-			nextDistance = Math.abs(townhall.getXPosition() - nextX) +  Math.abs(townhall.getYPosition() - nextY);
+			currentDistance = Math.abs(townhallLoc.x - currentX) + Math.abs(townhallLoc.y - currentY);
+			nextDistance = Math.abs(townhallLoc.x - nextX) +  Math.abs(townhallLoc.y - nextY);
 		
-			for(int i = townhall.getXPosition(); i < currentX; i++) {
+			for(int i = townhallLoc.x; i < currentX; i++) {
 				for(int j = 0; j < boardSizeRow; j++) {
-					xProbs += towerProb[i][j];
+					xProbs += grid.getProb(i, j);
 				}
 			}
-			xProbs /= (Math.abs(townhall.getXPosition() - currentX) * boardSizeRow);
+			xProbs /= (Math.abs(townhallLoc.x - currentX) * boardSizeRow);
 			
 			for(int i = 0; i < boardSizeColumn; i++) {
-				for(int j = currentY; j < townhall.getYPosition(); j++) {
-					yProbs += towerProb[i][j];
+				for(int j = currentY; j < townhallLoc.y; j++) {
+					yProbs += grid.getProb(i, j);
 				}
 			}
-			yProbs /= (boardSizeColumn * Math.abs(currentY - townhall.getYPosition()));
+			yProbs /= (boardSizeColumn * Math.abs(currentY - townhallLoc.y));
 			
 			if(nextX < currentX) {
 				if(xProbs < yProbs) {
@@ -588,144 +928,303 @@ public class ProbAgent extends Agent {
 	 * Sums the probabilities there being a tower at
 	 * all of the locations that are in range of the
 	 * peasantLoc.
+	 * @param grid - The belief to sum over
 	 * @param x - Potential peasant location x coordinate
 	 * @param y - Potential peasant location y coordinate
 	 * @return Probability of getting hit at (x, y)
 	 */
-	private double probOfGettingHit(int x, int y) {
-		double totalProb = 0;
-		
-		Point tower = new Point();
-		for(int i = -4; i <= 4; i++) {
-			for(int j = -4; j <= 4; j++) {
-				tower.x = x + j;
-				tower.y = y + i;
-				
-				if(currentState.inBounds(tower.x, tower.y)) {
-					totalProb += towerProb[tower.x][tower.y];
+	private double probOfGettingHit(BeliefGrid grid, int x, int y) {
+		if(grid != belief) {
+			return TOWER_ACCURACY * towerKernel.sum(grid, x, y);
+		}
+		if(riskValid[x][y]) {
+			return riskCache[x][y];
+		}
+		riskCache[x][y] = TOWER_ACCURACY * towerKernel.sum(grid, x, y);
+		riskValid[x][y] = true;
+		return riskCache[x][y];
+	}
+	
+	/**
+	 * Drops the cached hit probabilities of every location that has
+	 * a changed tower probability in range, then clears the dirty region.
+	 */
+	private void invalidateRisk() {
+		int range = towerKernel.getRadius();
+		for(int r = 0; r < beliefDirty.size(); r++) {
+			int minX = Math.max(0, beliefDirty.getMinX(r) - range);
+			int minY = Math.max(0, beliefDirty.getMinY(r) - range);
+			int maxX = Math.min(boardSizeColumn - 1, beliefDirty.getMaxX(r) + range);
+			int maxY = Math.min(boardSizeRow - 1, beliefDirty.getMaxY(r) + range);
+			for(int i = minX; i <= maxX; i++) {
+				for(int j = minY; j <= maxY; j++) {
+					riskValid[i][j] = false;
 				}
 			}
 		}
-		
-		return 0.75 * totalProb;
+		beliefDirty.clear();
+	}
+	
+	/**
+	 * Counts a visit to the peasant's location and updates the tower
+	 * probabilities of the belief and of its double precision shadow.
+	 * @param gotHit - True if the peasant got hit at the location
+	 * @param x - The peasant's x location
+	 * @param y - The peasant's y location
+	 */
+	private void recordVisit(boolean gotHit, int x, int y) {
+		if(gotHit) {
+			observationSurprise = true;
+		}
+		belief.addVisit(x, y);
+		if(gotHit) {
+			belief.addHit(x, y);
+		}
+		updateTowerProbs(belief, gotHit, x, y, beliefDirty);
+		if(shadow != null) {
+			shadow.addVisit(x, y);
+			if(gotHit) {
+				shadow.addHit(x, y);
+			}
+			updateTowerProbs(shadow, gotHit, x, y, beliefDirty);
+		}
 	}
 	
 	/**
 	 * Updates the probabilities of towers being at various locations
 	 * given whether or not the peasant got hit at its current location.
+	 * @param grid - The belief to update
 	 * @param gotHit - True if the peasant got hit at the location
 	 * @param x - The peasant's x location
 	 * @param y - The peasant's y location
+	 * @param dirty - Grown to cover the locations that changed
 	 */
-	private void updateTowerProbs(boolean gotHit, int x, int y) {
-		double changedSum = 0;
+	private void updateTowerProbs(BeliefGrid grid, boolean gotHit, int x, int y, DirtyRegion dirty) {
+		int numVisits = grid.getVisits(x, y);
+		int numHits = grid.getHits(x, y);
+		double likelihood = hitLikelihood(numVisits, numHits);
 		
-		Point tower = new Point();
 		if(gotHit) {
-			for(int i = -4; i <= 4; i++) {
-				for(int j = -4; j <= 4; j++) {
-					tower.x = x + j;
-					tower.y = y + i;
-					
-					if(currentState.inBounds(tower.x, tower.y) 
-							&& !hasSeen[tower.x][tower.y]) {
-						towerProb[tower.x][tower.y] *= binomialCoeff(numVisits[x][y], numHits[x][y])
-								* Math.pow(0.75, numHits[x][y]) 
-								* Math.pow(0.25, numVisits[x][y] - numHits[x][y]);
-						if(towerProb[tower.x][tower.y] != 1) {
-							changedSum += towerProb[tower.x][tower.y];
-						}
-					}
-				}
-			}
-			if(changedSum != 0) {
-				for(int i = -4; i <= 4; i++) {
-					for(int j = -4; j <= 4; j++) {
-						tower.x = x + j;
-						tower.y = y + i;
-						
-						if(currentState.inBounds(tower.x, tower.y) 
-								&& !hasSeen[tower.x][tower.y]
-								&& towerProb[tower.x][tower.y] != 1) {
-							if(towerProb[tower.x][tower.y] < .000001) {
-								towerProb[tower.x][tower.y] = 0;
-							}
-							if(towerProb[tower.x][tower.y] > .5) {
-								towerProb[tower.x][tower.y] = 1;
-							}
-							towerProb[tower.x][tower.y] /= changedSum;
-						}
-					}
-				}
-			}
+			towerKernel.markBounds(dirty, x, y);
+			grid.setNeedsClamp(true);
+			towerKernel.multiplyThenNormalize(grid, x, y, likelihood, MIN_PROB, SNAP_PROB);
 		} else {
-			for(int i = -4; i <= 4; i++) {
-				for(int j = -4; j <= 4; j++) {
-					tower.x = x + j;
-					tower.y = y + i;
-					
-					if(currentState.inBounds(tower.x, tower.y) 
-							&& !hasSeen[tower.x][tower.y]
-							&& towerProb[tower.x][tower.y] != 1) {
-						towerProb[tower.x][tower.y] *= (1 - binomialCoeff(numVisits[x][y], numHits[x][y])
-								* Math.pow(0.75, numHits[x][y]) 
-								* Math.pow(0.25, numVisits[x][y] - numHits[x][y]));
-					}
-				}
+			//with nothing uncertain in range and the board already clamped the update changes nothing
+			if(!grid.needsClamp() && !towerKernel.hasUncertain(grid, x, y)) {
+				return;
 			}
+			towerKernel.markBounds(dirty, x, y);
+			towerKernel.multiply(grid, x, y, 1 - likelihood, false);
 
 			double totalSum = 0;
-			for(int i = 0; i < towerProb.length; i++) {
-				for(int j = 0; j < towerProb[i].length; j++) {
-					if(currentState.inBounds(i, j) 
-							&& !hasSeen[i][j]) {
-						if(towerProb[i][j] < .000001) {
-							towerProb[i][j] = 0;
+			for(int i = 0; i < boardSizeColumn; i++) {
+				for(int j = 0; j < boardSizeRow; j++) {
+					if(!grid.hasSeen(i, j)) {
+						double prob = grid.getProb(i, j);
+						if(prob < MIN_PROB && prob != 0) {
+							prob = 0;
+							grid.setProb(i, j, prob);
+							dirty.mark(i, j);
 						}
-						if(towerProb[i][j] > .5) {
-							towerProb[i][j] = 1;
+						if(prob > SNAP_PROB && prob != 1) {
+							prob = 1;
+							grid.setProb(i, j, prob);
+							dirty.mark(i, j);
 						}
-						totalSum += towerProb[i][j];
+						totalSum += prob;
 					}
 				}
 			}
 			
-			for(int i = -4; i <= 4; i++) {
-				for(int j = -4; j <= 4; j++) {
-					tower.x = x + j;
-					tower.y = y + i;
-					
-					if(currentState.inBounds(tower.x, tower.y) 
-							&& !hasSeen[tower.x][tower.y]
-							&& towerProb[tower.x][tower.y] != 1) {
-						towerProb[tower.x][tower.y] /= totalSum;
-					}
-				}
+			grid.setNeedsClamp(towerKernel.normalize(grid, x, y, totalSum, false, MIN_PROB, SNAP_PROB));
+		}
+	}
+	
+	/**
+	 * Hands the planner thread what the next step should look like if every
+	 * peasant gets where it is going unharmed, so it can plan the next moves
+	 * while SEPIA simulates this step. Each peasant is read once; which of its
+	 * moves will be blocked is worked out on the planner thread.
+	 */
+	private void speculate() {
+		SpeculativePlan plan = new SpeculativePlan(step + 1, new BeliefSnapshot(belief), seenGold, goldLoc, 
+				obstacles(), random.nextLong());
+		HashMap<Integer, Integer> nextCargo = new HashMap<Integer, Integer>();
+		for(int peasantID : prevState.getPeasantIds()) {
+			if(!peasantIds.contains(peasantID)) { //died this step
+				continue;
 			}
+			UnitView peasant = currentState.getUnit(peasantID);
+			Point next = prevState.getPeasantLoc(peasantID);
+			boolean moved = next.x != peasant.getXPosition() || next.y != peasant.getYPosition();
+			plan.addPeasant(peasantID, next, moved, peasant.getHP(), peasant.getCargoAmount());
+			nextCargo.put(peasantID, peasant.getCargoAmount());
 		}
+		plan.planningOrder.addAll(planningOrder(plan.peasantIds, nextCargo));
+		
+		final SpeculativePlan task = plan;
+		speculation = plan;
+		pendingMoves = planner.submit(new Callable<HashMap<Integer, Direction>>() {
+			@Override
+			public HashMap<Integer, Direction> call() {
+				return planAhead(task);
+			}
+		});
 	}
 	
-	private double binomialCoeff(int numVisits, int numHits) {
-		if(numHits == 0 || numVisits == numHits) {
-			return 1;
+	/**
+	 * The locations taken by resources and by units other than the peasants, as a grid
+	 * the planner thread can read. Nothing but the peasants moves, so the grid is only
+	 * rebuilt when the number of units or resources in view changes, and a rebuild makes
+	 * a new grid rather than changing the one plans already hold.
+	 */
+	private boolean[][] obstacles() {
+		List<Integer> unitIds = currentState.getAllUnitIds();
+		List<Integer> resourceIds = currentState.getAllResourceIds();
+		if(obstacleGrid != null && unitIds.size() == obstacleUnits && resourceIds.size() == obstacleResources) {
+			return obstacleGrid;
 		}
-		double numerator = 1;
-		for(int i = numVisits; i > numHits; i--) {
-			numerator *= i;
+		boolean grid[][] = new boolean[boardSizeColumn][boardSizeRow];
+		for(int id : unitIds) {
+			if(!peasantIds.contains(id)) {
+				UnitView unit = currentState.getUnit(id);
+				grid[unit.getXPosition()][unit.getYPosition()] = true;
+			}
 		}
-		double denom = 1;
-		for(int i = numVisits - numHits; i > 0; i--) {
-			denom *= i;
+		for(int id : resourceIds) {
+			ResourceView resource = currentState.getResourceNode(id);
+			grid[resource.getXPosition()][resource.getYPosition()] = true;
+		}
+		obstacleGrid = grid;
+		obstacleUnits = unitIds.size();
+		obstacleResources = resourceIds.size();
+		return obstacleGrid;
+	}
+	
+	/**
+	 * Runs on the planner thread. Applies the expected observations to the
+	 * snapshot of the belief, then plans the peasants' moves the same way
+	 * middleStep would.
+	 * @param plan - The expected next step
+	 * @return The planned direction of every peasant that is expected to move
+	 */
+	private HashMap<Integer, Direction> planAhead(SpeculativePlan plan) {
+		final BeliefGrid grid = plan.belief.get();
+		DirtyRegion dirty = new DirtyRegion();
+		StencilKernel.CellVisitor emptySight = new StencilKernel.CellVisitor() {
+			@Override
+			public void visit(int x, int y, double weight) {
+				if(!grid.hasSeen(x, y)) {
+					grid.setSeen(x, y);
+					grid.setProb(x, y, 0.0);
+				}
+			}
+		};
+		for(int peasantID : plan.peasantIds) {
+			Point loc = plan.locs.get(peasantID);
+			if(plan.moved.get(peasantID)) {
+				visionKernel.apply(loc.x, loc.y, emptySight);
+			}
+			grid.addVisit(loc.x, loc.y);
+			updateTowerProbs(grid, false, loc.x, loc.y, dirty);
 		}
 		
-		return numerator / denom;
+		HashMap<Integer, Direction> moves = new HashMap<Integer, Direction>();
+		ReservationTable claims = new ReservationTable();
+		claims.advance(plan.step + 1);
+		Random rng = new Random(plan.seed);
+		for(int peasantID : plan.planningOrder) {
+			Point loc = plan.locs.get(peasantID);
+			int cargo = plan.cargo.get(peasantID);
+			if((plan.seenGold && cargo == 0 && adjacent(loc, plan.goldLoc))
+					|| (cargo != 0 && adjacent(loc, townhallLoc))) { //stays put, and its location is already blocked for the others
+				continue;
+			}
+			boolean blocked[] = new boolean[directions.length];
+			for(int k = 0; k < directions.length; k++) {
+				int x = loc.x + deltaX(directions[k]);
+				int y = loc.y + deltaY(directions[k]);
+				blocked[k] = x < 0 || y < 0 || x >= boardSizeColumn || y >= boardSizeRow
+						|| plan.isTaken(x, y, peasantID)
+						|| !claims.isFree(x, y, plan.step + 1, peasantID);
+			}
+			Direction move = bestMove(grid, peasantID, loc.x, loc.y, cargo > 0, blocked, plan.goldLoc, rng);
+			moves.put(peasantID, move);
+			claims.reserve(loc.x + deltaX(move), loc.y + deltaY(move), plan.step + 1, peasantID);
+		}
+		return moves;
+	}
+	
+	/**
+	 * Checks the speculative plan for this step against what was observed.
+	 * @return The planned moves if the plan finished and everything went as expected, otherwise null
+	 */
+	private HashMap<Integer, Direction> adoptSpeculation(SpeculativePlan plan, Future<HashMap<Integer, Direction>> pending) {
+		if(plan == null || pending == null) {
+			return null;
+		}
+		boolean matches = plan.step == step && !observationSurprise && pending.isDone()
+				&& plan.peasantIds.equals(prevState.getPeasantIds());
+		for(int i = 0; matches && i < plan.peasantIds.size(); i++) {
+			UnitView peasant = currentState.getUnit(plan.peasantIds.get(i));
+			matches = peasant != null && plan.matches(plan.peasantIds.get(i), peasant.getXPosition(), 
+					peasant.getYPosition(), peasant.getHP(), peasant.getCargoAmount());
+		}
+		if(!matches) {
+			pending.cancel(true);
+			speculationMisses++;
+			return null;
+		}
+		try {
+			speculationHits++;
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.log(Level.WARNING, "Speculative planning failed", e);
+		}
+		speculationHits--;
+		speculationMisses++;
+		return null;
+	}
+	
+	private void cancelSpeculation() {
+		if(pendingMoves != null) {
+			pendingMoves.cancel(true);
+		}
+		pendingMoves = null;
+		speculation = null;
+		plannedMoves = null;
+	}
+	
+	private static boolean adjacent(Point loc, Point target) {
+		return Math.abs(loc.x - target.x) <= 1 && Math.abs(loc.y - target.y) <= 1;
+	}
+	
+	/**
+	 * Binomial probability of numHits hits in numVisits visits to a location in range of a tower.
+	 * Worked out in log space over the shorter side of the coefficient, so the cost stays
+	 * at min(numHits, numVisits - numHits) steps and it neither overflows nor turns into NaN
+	 * once a location has been visited hundreds of times.
+	 * @param numVisits - Times a peasant stood on the location
+	 * @param numHits - Times it got hit there
+	 * @return The likelihood of the hits
+	 */
+	private static double hitLikelihood(int numVisits, int numHits) {
+		int numMisses = numVisits - numHits;
+		int shorter = Math.min(numHits, numMisses);
+		double logLikelihood = numHits * Math.log(TOWER_ACCURACY) + numMisses * Math.log(1 - TOWER_ACCURACY);
+		for(int i = 1; i <= shorter; i++) {
+			logLikelihood += Math.log((double)(numVisits - shorter + i) / i);
+		}
+		return Math.exp(logLikelihood);
 	}
 
 
 	public void printTowerProbs() {
-		for(int i = 0; i < towerProb.length; i++) {
-			for(int j = 0; j < towerProb[i].length; j++) {
-				System.out.print("" + i + ", " + j + " " + Math.floor(towerProb[i][j] * 10000) / 10000 + "  ");
+		for(int i = 0; i < boardSizeColumn; i++) {
+			for(int j = 0; j < boardSizeRow; j++) {
+				System.out.print("" + i + ", " + j + " " + Math.floor(belief.getProb(i, j) * 10000) / 10000 + "  ");
 			}
 			System.out.println();
 		}
@@ -0,0 +1,66 @@
+import java.util.HashMap;
+
+/**
+ * Records which unit has claimed a location at the step being planned.
+ * Peasants are planned one at a time in priority order, and each one that
+ * moves claims the location it moves to so that peasants planned later do not
+ * move onto it. Peasants staying in place need no claim, since the location
+ * they occupy is already blocked. Moves are only decided one step ahead, so
+ * the table holds claims for that step alone and moving it on to the next
+ * step drops them.
+ */
+public class ReservationTable {
+	private final HashMap<Long, Integer> reserved = new HashMap<Long, Integer>();
+	private int step = 0;
+
+	/**
+	 * Moves the table on to the given step, dropping the claims for any other step.
+	 */
+	public void advance(int step) {
+		if(step != this.step) {
+			reserved.clear();
+			this.step = step;
+		}
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 *
+	 * @return True if nobody but the unit itself has claimed (x, y) at step t
+	 */
+	public boolean isFree(int x, int y, int t, int unitId) {
+		if(t != step) {
+			return true;
+		}
+		Integer owner = reserved.get(key(x, y));
+		return owner == null || owner == unitId;
+	}
+
+	/**
+	 * Claims (x, y) at step t for the unit. A claim already held by another unit is kept.
+	 * @return False if the claim was refused, because another unit holds (x, y) or t is not the table's step
+	 */
+	public boolean reserve(int x, int y, int t, int unitId) {
+		if(t != step) {
+			return false;
+		}
+		Long key = key(x, y);
+		Integer owner = reserved.get(key);
+		if(owner != null) {
+			return owner == unitId;
+		}
+		reserved.put(key, unitId);
+		return true;
+	}
+
+	public int size() {
+		return reserved.size();
+	}
+
+	private static long key(int x, int y) {
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,83 @@
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * What the agent expects to observe at the next step if every peasant
+ * completes its move without getting hit and nothing new comes into sight,
+ * together with a copy-on-write snapshot of the belief to plan against.
+ * The moves planned from it may only be used if the observation matches.
+ */
+public class SpeculativePlan {
+	final int step;
+	final BeliefSnapshot belief;
+	final boolean seenGold;
+	final Point goldLoc;
+	final boolean obstacles[][];
+	final long seed;
+
+	final ArrayList<Integer> peasantIds = new ArrayList<Integer>();
+	final ArrayList<Integer> planningOrder = new ArrayList<Integer>();
+	final HashMap<Integer, Point> locs = new HashMap<Integer, Point>();
+	final HashMap<Integer, Boolean> moved = new HashMap<Integer, Boolean>();
+	final HashMap<Integer, Integer> HP = new HashMap<Integer, Integer>();
+	final HashMap<Integer, Integer> cargo = new HashMap<Integer, Integer>();
+
+	/**
+	 *
+	 * @param step - The step the plan is for
+	 * @param belief - Snapshot of the belief before the step's observations
+	 * @param seenGold - Whether the gold mine has been found
+	 * @param goldLoc - Where the gold mine is or is assumed to be
+	 * @param obstacles - The locations taken by anything but the peasants, which must not change afterwards
+	 * @param seed - Seed for the random draws made while planning
+	 */
+	public SpeculativePlan(int step, BeliefSnapshot belief, boolean seenGold, Point goldLoc, 
+			boolean obstacles[][], long seed) {
+		this.step = step;
+		this.belief = belief;
+		this.seenGold = seenGold;
+		this.goldLoc = new Point(goldLoc);
+		this.obstacles = obstacles;
+		this.seed = seed;
+	}
+
+	/**
+	 * Adds a peasant's expected state at the planned step.
+	 * Peasants must be added in the order the agent analyzes them.
+	 */
+	public void addPeasant(int id, Point loc, boolean moved, int HP, int cargo) {
+		peasantIds.add(id);
+		locs.put(id, new Point(loc));
+		this.moved.put(id, moved);
+		this.HP.put(id, HP);
+		this.cargo.put(id, cargo);
+	}
+
+	/**
+	 *
+	 * @return True if something other than the given peasant is expected at (x, y)
+	 */
+	public boolean isTaken(int x, int y, int peasantId) {
+		if(obstacles[x][y]) {
+			return true;
+		}
+		for(int i = 0; i < peasantIds.size(); i++) {
+			Point loc = locs.get(peasantIds.get(i));
+			if(peasantIds.get(i) != peasantId && loc.x == x && loc.y == y) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @return True if the peasant was observed where, and as, the plan expected
+	 */
+	public boolean matches(int id, int x, int y, int HP, int cargo) {
+		Point loc = locs.get(id);
+		return loc != null && loc.x == x && loc.y == y
+				&& this.HP.get(id) == HP && this.cargo.get(id) == cargo;
+	}
+}
@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+
+/**
+ * A fixed neighbourhood of offsets around a location, such as the squares
+ * a unit can see or the squares a tower can hit from.
+ *
+ * Once bound to a board size the kernel keeps the in-bounds offsets for every
+ * combination of distance to the board edges, so the interior, the edges and
+ * the corners each get their own pre-clipped offsets and the loops over a
+ * neighbourhood never check bounds. The offsets are ordered by column, so the
+ * in-bounds ones of a column form one run and a clipped neighbourhood is kept
+ * as at most 2 * radius + 1 runs rather than a list of every offset.
+ */
+public class StencilKernel {
+
+	/**
+	 * SQUARE covers every offset within the radius on both axes (the Chebyshev disk),
+	 * DIAMOND covers |dx| + |dy| <= radius and DISK covers dx^2 + dy^2 <= radius^2.
+	 */
+	public enum Shape {
+		SQUARE, DIAMOND, DISK
+	}
+
+	public interface Weights {
+		double weight(int dx, int dy);
+	}
+
+	public interface CellVisitor {
+		void visit(int x, int y, double weight);
+	}
+
+	private final int radius;
+	private final Shape shape;
+	private final int dx[];
+	private final int dy[];
+	private final double weight[];
+	private final int columnStart[];
+
+	private int yClasses;
+	private int xClass[] = new int[0];
+	private int yClass[] = new int[0];
+	private int clipped[][];
+
+	public StencilKernel(int radius, Shape shape) {
+		this(radius, shape, null);
+	}
+
+	/**
+	 *
+	 * @param radius - The furthest offset on either axis
+	 * @param shape - Which offsets within the radius belong to the kernel
+	 * @param weights - The weight of each offset, or null for a weight of 1 everywhere
+	 */
+	public StencilKernel(int radius, Shape shape, Weights weights) {
+		if(radius < 0) {
+			throw new IllegalArgumentException("Kernel radius must not be negative: " + radius);
+		}
+		this.radius = radius;
+		this.shape = shape;
+		ArrayList<int[]> offsets = new ArrayList<int[]>();
+		for(int i = -radius; i <= radius; i++) {
+			for(int j = -radius; j <= radius; j++) {
+				if(contains(i, j)) {
+					offsets.add(new int[] {i, j});
+				}
+			}
+		}
+		dx = new int[offsets.size()];
+		dy = new int[offsets.size()];
+		weight = new double[offsets.size()];
+		columnStart = new int[2 * radius + 2];
+		for(int k = 0; k < offsets.size(); k++) {
+			dx[k] = offsets.get(k)[0];
+			dy[k] = offsets.get(k)[1];
+			weight[k] = weights == null ? 1 : weights.weight(dx[k], dy[k]);
+			columnStart[dx[k] + radius + 1] = k + 1;
+		}
+		for(int c = 1; c < columnStart.length; c++) {
+			columnStart[c] = Math.max(columnStart[c], columnStart[c - 1]);
+		}
+	}
+
+	private boolean contains(int i, int j) {
+		switch(shape) {
+		case DIAMOND:
+			return Math.abs(i) + Math.abs(j) <= radius;
+		case DISK:
+			return i * i + j * j <= radius * radius;
+		default:
+			return true;
+		}
+	}
+
+	public int getRadius() {
+		return radius;
+	}
+
+	public Shape getShape() {
+		return shape;
+	}
+
+	/**
+	 * Precomputes the clipped offset runs for a board.
+	 * Must be called before any of the grid operations.
+	 * @param columns - The board's x extent
+	 * @param rows - The board's y extent
+	 */
+	public void bind(int columns, int rows) {
+		xClass = axisClasses(columns);
+		yClass = axisClasses(rows);
+		int xClasses = columns == 0 ? 0 : xClass[columns - 1] + 1;
+		yClasses = rows == 0 ? 0 : yClass[rows - 1] + 1;
+		clipped = new int[xClasses * yClasses][];
+		int runs[] = new int[2 * (2 * radius + 1)];
+		for(int x = 0; x < columns; x++) {
+			for(int y = 0; y < rows; y++) {
+				int key = xClass[x] * yClasses + yClass[y];
+				if(clipped[key] != null) {
+					continue;
+				}
+				int lowY = -Math.min(y, radius);
+				int highY = Math.min(rows - 1 - y, radius);
+				int count = 0;
+				for(int i = -Math.min(x, radius); i <= Math.min(columns - 1 - x, radius); i++) {
+					int start = firstAtLeast(columnStart[i + radius], columnStart[i + radius + 1], lowY);
+					int end = firstAtLeast(start, columnStart[i + radius + 1], highY + 1);
+					if(start < end) {
+						runs[count++] = start;
+						runs[count++] = end;
+					}
+				}
+				clipped[key] = new int[count];
+				System.arraycopy(runs, 0, clipped[key], 0, count);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return The first offset in [from, to) whose dy is at least the given one, or to if there is none
+	 */
+	private int firstAtLeast(int from, int to, int minDy) {
+		while(from < to) {
+			int middle = (from + to) >>> 1;
+			if(dy[middle] < minDy) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * Every coordinate is classed by how far the kernel reaches past
+	 * the low and the high edge of the board, capped at the radius.
+	 * Only the classes that occur are numbered, in order along the axis,
+	 * so there are at most min(extent, 2 * radius + 1) of them.
+	 */
+	private int[] axisClasses(int extent) {
+		int classes[] = new int[extent];
+		int lastLow = -1;
+		int lastHigh = -1;
+		int count = -1;
+		for(int i = 0; i < extent; i++) {
+			int low = Math.min(i, radius);
+			int high = Math.min(extent - 1 - i, radius);
+			if(low != lastLow || high != lastHigh) {
+				count++;
+				lastLow = low;
+				lastHigh = high;
+			}
+			classes[i] = count;
+		}
+		return classes;
+	}
+
+	/**
+	 * 
+	 * @return The in-bounds offsets around (x, y) as [start, end) pairs of offset indices
+	 */
+	private int[] runsAt(int x, int y) {
+		return clipped[xClass[x] * yClasses + yClass[y]];
+	}
+
+	/**
+	 * Calls the visitor on every in-bounds location of the kernel centered at (x, y).
+	 */
+	public void apply(int x, int y, CellVisitor visitor) {
+		int runs[] = runsAt(x, y);
+		for(int r = 0; r < runs.length; r += 2) {
+			for(int k = runs[r]; k < runs[r + 1]; k++) {
+				visitor.visit(x + dx[k], y + dy[k], weight[k]);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The weighted sum of the tower probabilities over the kernel centered at (x, y)
+	 */
+	public double sum(BeliefGrid grid, int x, int y) {
+		double total = 0;
+		int runs[] = runsAt(x, y);
+		for(int r = 0; r < runs.length; r += 2) {
+			for(int k = runs[r]; k < runs[r + 1]; k++) {
+				total += weight[k] * grid.getProb(x + dx[k], y + dy[k]);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Multiplies the unseen probabilities of the kernel centered at (x, y) by factor,
+	 * scaled by each offset's weight: an offset of weight w is multiplied by 1 + w * (factor - 1),
+	 * so a weight of 1 gets the full factor and a weight of 0 is left alone.
+	 * @param includeCertain - False to leave probabilities of exactly 1 untouched
+	 * @return The sum of the resulting probabilities that are not 1
+	 */
+	public double multiply(BeliefGrid grid, int x, int y, double factor, boolean includeCertain) {
+		double changedSum = 0;
+		int runs[] = runsAt(x, y);
+		for(int r = 0; r < runs.length; r += 2) {
+			for(int k = runs[r]; k < runs[r + 1]; k++) {
+				int i = x + dx[k];
+				int j = y + dy[k];
+				if(grid.hasSeen(i, j)) {
+					continue;
+				}
+				double prob = grid.getProb(i, j);
+				if(includeCertain || prob != 1) {
+					grid.setProb(i, j, prob * (weight[k] == 1 ? factor : 1 + weight[k] * (factor - 1)));
+					prob = grid.getProb(i, j);
+					if(prob != 1) {
+						changedSum += prob;
+					}
+				}
+			}
+		}
+		return changedSum;
+	}
+
+	/**
+	 * Divides the unseen probabilities of the kernel centered at (x, y) that are not 1 by divisor.
+	 * When clamping, values below floor first become 0 and values above ceiling become 1.
+	 * Every offset is divided alike, whatever its weight: the weights already went into the
+	 * multiplication this renormalizes, the same way they go into sum.
+	 * @return True if a nonzero value was divided
+	 */
+	public boolean normalize(BeliefGrid grid, int x, int y, double divisor,
+			boolean clamp, double floor, double ceiling) {
+		boolean divided = false;
+		int runs[] = runsAt(x, y);
+		for(int r = 0; r < runs.length; r += 2) {
+			for(int k = runs[r]; k < runs[r + 1]; k++) {
+				int i = x + dx[k];
+				int j = y + dy[k];
+				double prob = grid.getProb(i, j);
+				if(!grid.hasSeen(i, j) && prob != 1) {
+					if(clamp) {
+						if(prob < floor) {
+							prob = 0;
+						}
+						if(prob > ceiling) {
+							prob = 1;
+						}
+					}
+					if(prob != 0) {
+						divided = true;
+					}
+					grid.setProb(i, j, prob / divisor);
+				}
+			}
+		}
+		return divided;
+	}
+
+	/**
+	 * Multiplies every unseen probability of the kernel centered at (x, y) by its weighted factor,
+	 * then clamps and renormalizes the ones that did not become 1 by their sum.
+	 * @return The sum the values were normalized by, 0 if they were left as multiplied
+	 */
+	public double multiplyThenNormalize(BeliefGrid grid, int x, int y, double factor,
+			double floor, double ceiling) {
+		double changedSum = multiply(grid, x, y, factor, true);
+		if(changedSum != 0) {
+			normalize(grid, x, y, changedSum, true, floor, ceiling);
+		}
+		return changedSum;
+	}
+
+	/**
+	 *
+	 * @return True if some unseen probability of the kernel centered at (x, y) is neither 0 nor 1
+	 */
+	public boolean hasUncertain(BeliefGrid grid, int x, int y) {
+		int runs[] = runsAt(x, y);
+		for(int r = 0; r < runs.length; r += 2) {
+			for(int k = runs[r]; k < runs[r + 1]; k++) {
+				int i = x + dx[k];
+				int j = y + dy[k];
+				double prob = grid.getProb(i, j);
+				if(!grid.hasSeen(i, j) && prob != 0 && prob != 1) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Grows the region by the in-bounds bounding box of the kernel centered at (x, y).
+	 */
+	public void markBounds(DirtyRegion region, int x, int y) {
+		region.mark(x - Math.min(x, radius), y - Math.min(y, radius),
+				x + Math.min(xClass.length - 1 - x, radius), y + Math.min(yClass.length - 1 - y, radius));
+	}
+}
@@ -0,0 +1,605 @@
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.awt.Point;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionType;
+import edu.cwru.sepia.action.DirectedAction;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
+import edu.cwru.sepia.environment.model.state.ResourceType;
+import edu.cwru.sepia.environment.model.state.State.StateView;
+import edu.cwru.sepia.environment.model.state.Template.TemplateView;
+import edu.cwru.sepia.environment.model.state.Unit.UnitView;
+import edu.cwru.sepia.util.Direction;
+
+/**
+ * Drives a single ProbAgent through many episodes on scripted maps, the way a
+ * long-running host does, and fails if the heap after GC, the per-step
+ * latency, the allocation per step or the number of live threads trends
+ * upwards once the agent has warmed up.
+ *
+ * The episodes are split into windows. After the warmup windows a least-squares
+ * line is fitted through each measurement per window, and its rise from the
+ * first to the last window is checked against the soak.* thresholds.
+ * The median CPU time the agent's own thread spends per step is reported
+ * alongside, leaving out the work handed to the agent's background threads.
+ * Runs with the soak profile, see pom.xml.
+ */
+public class ProbAgentSoakTest {
+	private static final int MAP_SIZES[] = {16, 24, 32, 48};
+	private static final double TOWER_DENSITY = 0.0085;
+	private static final int TOWER_RANGE = 4;
+	private static final double TOWER_ACCURACY = 0.75;
+	private static final int TOWER_DAMAGE = 5;
+	private static final int PEASANT_HP = 50;
+	private static final int PEASANT_COST = 400;
+	private static final int GOLD_PER_TRIP = 100;
+	private static final int GATHER_STEPS = 5;
+	private static final int DEPOSIT_STEPS = 2;
+	private static final int GOLD_TARGET = 2000;
+	private static final int MAX_EXTRA_THREADS = 2;
+
+	private final int episodes = Integer.getInteger("soak.episodes", 2000);
+	private final int maxSteps = Integer.getInteger("soak.maxSteps", 250);
+	private final int numMaps = Integer.getInteger("soak.maps", 250);
+	private final int windows = Integer.getInteger("soak.windows", 10);
+	private final int warmupWindows = Integer.getInteger("soak.warmupWindows", 2);
+	private final String agentArgs = System.getProperty("soak.agentArgs", "").trim();
+	private final long maxHeapGrowthBytes = Long.getLong("soak.maxHeapGrowthBytes", 16L * 1024 * 1024);
+	private final double maxP50Growth = Double.parseDouble(System.getProperty("soak.maxP50Growth", "0.5"));
+	private final double maxP99Growth = Double.parseDouble(System.getProperty("soak.maxP99Growth", "1.0"));
+	private final double maxAllocationGrowth = Double.parseDouble(System.getProperty("soak.maxAllocationGrowth", "0.25"));
+
+	@Test
+	public void resourceUseStaysFlatAcrossEpisodes() {
+		assertTrue("Need at least two windows after the warmup", windows - warmupWindows >= 2);
+		int episodesPerWindow = episodes / windows;
+		assertTrue("Need at least one episode per window", episodesPerWindow > 0);
+
+		MapLayout maps[] = new MapLayout[numMaps];
+		for(int i = 0; i < numMaps; i++) {
+			maps[i] = new MapLayout(i);
+		}
+		ProbAgent agent = new ProbAgent(0, agentArgs.isEmpty() ? new String[0] : agentArgs.split("\\s+"));
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		AllocationCounter allocation = new AllocationCounter(threads);
+
+		double heap[] = new double[windows];
+		double p50[] = new double[windows];
+		double p99[] = new double[windows];
+		double allocationPerStep[] = new double[windows];
+		int liveThreads[] = new int[windows];
+		long latencies[] = new long[episodesPerWindow * maxSteps];
+		long cpuTimes[] = new long[episodesPerWindow * maxSteps];
+		boolean cpuSupported = threads.isCurrentThreadCpuTimeSupported();
+		long totalSteps = 0;
+		long compoundActions = 0;
+		long reusedActions = 0;
+		int episode = 0;
+
+		System.out.println("window  episodes     steps  heap MB  p50 us  p99 us  cpu p50 us  alloc KB/step  threads");
+		for(int window = 0; window < windows; window++) {
+			int samples = 0;
+			long allocated = 0;
+			for(int e = 0; e < episodesPerWindow; e++, episode++) {
+				ScriptedWorld world = maps[episode % numMaps].newEpisode(episode);
+				Map<Integer, Action> actions = agent.initialStep(world.view, null);
+				for(int step = 0; step < maxSteps; step++) {
+					world.apply(actions);
+					if(world.isOver()) {
+						break;
+					}
+					long allocatedBefore = allocation.current();
+					long cpuStart = cpuSupported ? threads.getCurrentThreadCpuTime() : 0;
+					long start = System.nanoTime();
+					actions = agent.middleStep(world.view, null);
+					latencies[samples] = System.nanoTime() - start;
+					cpuTimes[samples++] = cpuSupported ? threads.getCurrentThreadCpuTime() - cpuStart : 0;
+					allocated += allocation.current() - allocatedBefore;
+				}
+				agent.terminalStep(world.view, null);
+				compoundActions += world.compoundActions;
+				reusedActions += world.reusedActions;
+			}
+			totalSteps += samples;
+
+			System.gc();
+			System.gc();
+			heap[window] = memory.getHeapMemoryUsage().getUsed();
+			Arrays.sort(latencies, 0, samples);
+			p50[window] = samples == 0 ? 0 : latencies[(samples - 1) / 2];
+			p99[window] = samples == 0 ? 0 : latencies[(int)((samples - 1) * 0.99)];
+			Arrays.sort(cpuTimes, 0, samples);
+			double cpuP50 = samples == 0 ? 0 : cpuTimes[(samples - 1) / 2];
+			allocationPerStep[window] = samples == 0 ? 0 : (double)allocated / samples;
+			liveThreads[window] = threads.getThreadCount();
+			System.out.println(String.format("%6d  %8d  %8d  %7.1f  %6.0f  %6.0f  %10.0f  %13.1f  %7d", window, episode, totalSteps,
+					heap[window] / (1024 * 1024), p50[window] / 1000, p99[window] / 1000, cpuP50 / 1000,
+					allocationPerStep[window] / 1024, liveThreads[window]));
+		}
+		assertTrue("The scripted episodes ended before the agent took a step", totalSteps > 0);
+		System.out.println("Reused " + reusedActions + " of " + compoundActions + " gather and deposit actions");
+		assertTrue("The agent never kept an unfinished gather or deposit going", reusedActions > 0);
+
+		List<String> failures = new ArrayList<String>();
+		double heapGrowth = fittedRise(heap, warmupWindows);
+		if(heapGrowth > maxHeapGrowthBytes) {
+			failures.add("heap after GC grew by " + (long)heapGrowth + " bytes, limit " + maxHeapGrowthBytes);
+		}
+		checkRelativeGrowth("p50 step latency", p50, maxP50Growth, failures);
+		checkRelativeGrowth("p99 step latency", p99, maxP99Growth, failures);
+		if(allocation.isSupported()) {
+			checkRelativeGrowth("allocation per step", allocationPerStep, maxAllocationGrowth, failures);
+		}
+		if(liveThreads[windows - 1] > liveThreads[warmupWindows] + MAX_EXTRA_THREADS) {
+			failures.add("live threads went from " + liveThreads[warmupWindows] + " to " + liveThreads[windows - 1]);
+		}
+		assertTrue("Resource use trends upwards: " + failures, failures.isEmpty());
+	}
+
+	private void checkRelativeGrowth(String name, double values[], double limit, List<String> failures) {
+		double start = fittedStart(values, warmupWindows);
+		double growth = fittedRise(values, warmupWindows) / Math.max(start, 1e-9);
+		if(growth > limit) {
+			failures.add(name + " grew by " + Math.round(growth * 100) + "%, limit " + Math.round(limit * 100) + "%");
+		}
+	}
+
+	/**
+	 *
+	 * @return How much the least-squares line through values[from..] rises from its first to its last window
+	 */
+	private static double fittedRise(double values[], int from) {
+		return slope(values, from) * (values.length - 1 - from);
+	}
+
+	/**
+	 *
+	 * @return The value of the least-squares line through values[from..] at its first window
+	 */
+	private static double fittedStart(double values[], int from) {
+		int n = values.length - from;
+		double meanX = (n - 1) / 2.0;
+		double meanY = 0;
+		for(int i = from; i < values.length; i++) {
+			meanY += values[i] / n;
+		}
+		return meanY - slope(values, from) * meanX;
+	}
+
+	private static double slope(double values[], int from) {
+		int n = values.length - from;
+		double meanX = (n - 1) / 2.0;
+		double meanY = 0;
+		for(int i = from; i < values.length; i++) {
+			meanY += values[i] / n;
+		}
+		double covariance = 0;
+		double variance = 0;
+		for(int i = from; i < values.length; i++) {
+			double x = i - from - meanX;
+			covariance += x * (values[i] - meanY);
+			variance += x * x;
+		}
+		return variance == 0 ? 0 : covariance / variance;
+	}
+
+	/**
+	 * Bytes allocated by the calling thread, where the JVM can count them.
+	 */
+	private static class AllocationCounter {
+		private final com.sun.management.ThreadMXBean threads;
+
+		AllocationCounter(ThreadMXBean threads) {
+			if(threads instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported()) {
+				this.threads = (com.sun.management.ThreadMXBean)threads;
+				this.threads.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				this.threads = null;
+			}
+		}
+
+		boolean isSupported() {
+			return threads != null;
+		}
+
+		long current() {
+			return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+
+	/**
+	 * The fixed parts of a map: its size, the townhall, the gold mine and the towers.
+	 */
+	private static class MapLayout {
+		final int columns;
+		final int rows;
+		final Point townhall;
+		final Point peasant;
+		final Point gold;
+		final List<Point> towers = new ArrayList<Point>();
+
+		MapLayout(int index) {
+			Random random = new Random(index);
+			columns = MAP_SIZES[index % MAP_SIZES.length];
+			rows = MAP_SIZES[random.nextInt(MAP_SIZES.length)];
+			townhall = new Point(1 + random.nextInt(3), rows - 2 - random.nextInt(3));
+			peasant = new Point(townhall.x + 1, townhall.y);
+			gold = new Point(columns - 3 - random.nextInt(3), 1 + random.nextInt(3));
+			int numTowers = Math.max(1, (int)Math.round(columns * rows * TOWER_DENSITY));
+			while(towers.size() < numTowers) {
+				Point tower = new Point(random.nextInt(columns), random.nextInt(rows));
+				if(distance(tower, townhall) > 2 && distance(tower, peasant) > 2 && distance(tower, gold) > 2
+						&& !towers.contains(tower)) {
+					towers.add(tower);
+				}
+			}
+		}
+
+		ScriptedWorld newEpisode(long seed) {
+			return new ScriptedWorld(this, new Random(seed));
+		}
+	}
+
+	private static int distance(Point a, Point b) {
+		return Math.max(Math.abs(a.x - b.x), Math.abs(a.y - b.y));
+	}
+
+	/**
+	 * One episode on a map. The agent sees it through a StateView whose
+	 * methods answer from the live world, and apply() plays the agent's actions
+	 * and the towers' shots for one step. The towers are listed as units of
+	 * player 1, and gathering and depositing take several steps, as in SEPIA.
+	 */
+	private static class ScriptedWorld {
+		private static final int TOWNHALL_ID = 1;
+		private static final int GOLD_ID = 1000000;
+		private static final int FIRST_TOWER_ID = 2000000;
+
+		final StateView view;
+		private final MapLayout map;
+		private final Random random;
+		private final LinkedHashMap<Integer, Unit> units = new LinkedHashMap<Integer, Unit>();
+		private final HashMap<String, TemplateView> templates = new HashMap<String, TemplateView>();
+		private final ResourceView goldView;
+		private int nextId = TOWNHALL_ID;
+		private int playerGold = 0;
+		int compoundActions = 0;
+		int reusedActions = 0;
+
+		ScriptedWorld(MapLayout map, Random random) {
+			this.map = map;
+			this.random = random;
+			templates.put("TownHall", template(1, "TownHall"));
+			templates.put("Peasant", template(2, "Peasant"));
+			templates.put("GuardTower", template(3, "GuardTower"));
+			goldView = resource();
+			view = mock(StateView.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) {
+					return answerState(invocation);
+				}
+			}));
+			addUnit("TownHall", map.townhall.x, map.townhall.y, 1500);
+			addUnit("Peasant", map.peasant.x, map.peasant.y, PEASANT_HP);
+			for(int i = 0; i < map.towers.size(); i++) {
+				addUnit(FIRST_TOWER_ID + i, "GuardTower", map.towers.get(i).x, map.towers.get(i).y, 1000);
+			}
+		}
+
+		boolean isOver() {
+			return peasantCount() == 0 || playerGold >= GOLD_TARGET;
+		}
+
+		void apply(Map<Integer, Action> actions) {
+			for(Map.Entry<Integer, Action> entry : actions.entrySet()) {
+				Unit unit = units.get(entry.getKey());
+				Action action = entry.getValue();
+				if(unit == null || action == null) {
+					continue;
+				}
+				if(action.getType() == ActionType.COMPOUNDGATHER || action.getType() == ActionType.COMPOUNDDEPOSIT) {
+					compoundActions++;
+					if(action == unit.lastAction) {
+						reusedActions++;
+					}
+				}
+				unit.lastAction = action;
+				switch(action.getType()) {
+				case PRIMITIVEMOVE:
+					unit.working = null;
+					move(unit, ((DirectedAction)action).getDirection());
+					break;
+				case COMPOUNDGATHER:
+					if(unit.cargo == 0 && distance(unit.location(), map.gold) <= 1
+							&& work(unit, ActionType.COMPOUNDGATHER, GATHER_STEPS)) {
+						unit.cargo = GOLD_PER_TRIP;
+					}
+					break;
+				case COMPOUNDDEPOSIT:
+					if(unit.cargo > 0 && distance(unit.location(), map.townhall) <= 1
+							&& work(unit, ActionType.COMPOUNDDEPOSIT, DEPOSIT_STEPS)) {
+						playerGold += unit.cargo;
+						unit.cargo = 0;
+					}
+					break;
+				case COMPOUNDPRODUCE:
+					if(playerGold >= PEASANT_COST) {
+						Point free = freeCellNear(map.townhall);
+						if(free != null) {
+							playerGold -= PEASANT_COST;
+							addUnit("Peasant", free.x, free.y, PEASANT_HP);
+						}
+					}
+					break;
+				default:
+					break;
+				}
+			}
+			for(Point tower : map.towers) {
+				for(Unit unit : new ArrayList<Unit>(units.values())) {
+					if(unit.isPeasant() && distance(tower, unit.location()) <= TOWER_RANGE) {
+						if(random.nextDouble() < TOWER_ACCURACY) {
+							unit.hp -= TOWER_DAMAGE;
+							if(unit.hp <= 0) {
+								units.remove(unit.id);
+							}
+						}
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Advances a gather or deposit by one step. Like in SEPIA it takes several steps
+		 * of the same action in a row, and switching to another action starts it over.
+		 * @return True if the action completed this step
+		 */
+		private static boolean work(Unit unit, ActionType type, int steps) {
+			if(unit.working != type) {
+				unit.working = type;
+				unit.progress = 0;
+			}
+			unit.progress++;
+			if(unit.progress < steps) {
+				return false;
+			}
+			unit.working = null;
+			return true;
+		}
+
+		private void move(Unit unit, Direction direction) {
+			if(direction == null) {
+				return;
+			}
+			int x = unit.x;
+			int y = unit.y;
+			switch(direction) {
+			case NORTH: y--; break;
+			case NORTHEAST: x++; y--; break;
+			case EAST: x++; break;
+			case SOUTHEAST: x++; y++; break;
+			case SOUTH: y++; break;
+			case SOUTHWEST: x--; y++; break;
+			case WEST: x--; break;
+			case NORTHWEST: x--; y--; break;
+			default: return;
+			}
+			if(isFree(x, y)) {
+				unit.x = x;
+				unit.y = y;
+			}
+		}
+
+		private boolean isFree(int x, int y) {
+			return inBounds(x, y) && unitAt(x, y) == null && !(map.gold.x == x && map.gold.y == y);
+		}
+
+		private Point freeCellNear(Point center) {
+			for(int i = -1; i <= 1; i++) {
+				for(int j = -1; j <= 1; j++) {
+					if(isFree(center.x + i, center.y + j)) {
+						return new Point(center.x + i, center.y + j);
+					}
+				}
+			}
+			return null;
+		}
+
+		private boolean inBounds(int x, int y) {
+			return x >= 0 && x < map.columns && y >= 0 && y < map.rows;
+		}
+
+		private Integer unitAt(int x, int y) {
+			for(Unit unit : units.values()) {
+				if(unit.x == x && unit.y == y) {
+					return unit.id;
+				}
+			}
+			return null;
+		}
+
+		private int peasantCount() {
+			int count = 0;
+			for(Unit unit : units.values()) {
+				if(unit.isPeasant()) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		private void addUnit(String templateName, int x, int y, int hp) {
+			addUnit(nextId++, templateName, x, y, hp);
+		}
+
+		private void addUnit(int id, String templateName, int x, int y, int hp) {
+			final Unit unit = new Unit(id, templateName, templates.get(templateName), x, y, hp);
+			unit.view = mock(UnitView.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) {
+					String name = invocation.getMethod().getName();
+					if(name.equals("getID")) {
+						return unit.id;
+					} else if(name.equals("getTemplateView")) {
+						return unit.template;
+					} else if(name.equals("getHP")) {
+						return unit.hp;
+					} else if(name.equals("getXPosition")) {
+						return unit.x;
+					} else if(name.equals("getYPosition")) {
+						return unit.y;
+					} else if(name.equals("getCargoAmount")) {
+						return unit.cargo;
+					}
+					return unscripted(invocation);
+				}
+			}));
+			units.put(unit.id, unit);
+		}
+
+		private Object answerState(InvocationOnMock invocation) {
+			String name = invocation.getMethod().getName();
+			if(name.equals("getXExtent")) {
+				return map.columns;
+			} else if(name.equals("getYExtent")) {
+				return map.rows;
+			} else if(name.equals("getAllUnitIds")) {
+				return new ArrayList<Integer>(units.keySet());
+			} else if(name.equals("getUnitIds")) {
+				List<Integer> ids = new ArrayList<Integer>();
+				for(Unit unit : units.values()) {
+					if(unit.getPlayer() == (Integer)invocation.getArgument(0)) {
+						ids.add(unit.id);
+					}
+				}
+				return ids;
+			} else if(name.equals("getUnit")) {
+				Unit unit = units.get((Integer)invocation.getArgument(0));
+				return unit == null ? null : unit.view;
+			} else if(name.equals("getResourceAmount")) {
+				return invocation.getArgument(1) == ResourceType.GOLD ? playerGold : 0;
+			} else if(name.equals("getTemplate")) {
+				return templates.get((String)invocation.getArgument(1));
+			} else if(name.equals("inBounds")) {
+				return inBounds((Integer)invocation.getArgument(0), (Integer)invocation.getArgument(1));
+			} else if(name.equals("unitAt")) {
+				return unitAt((Integer)invocation.getArgument(0), (Integer)invocation.getArgument(1));
+			} else if(name.equals("isUnitAt")) {
+				return unitAt((Integer)invocation.getArgument(0), (Integer)invocation.getArgument(1)) != null;
+			} else if(name.equals("isResourceAt")) {
+				return map.gold.x == (Integer)invocation.getArgument(0) && map.gold.y == (Integer)invocation.getArgument(1);
+			} else if(name.equals("resourceAt")) {
+				boolean atGold = map.gold.x == (Integer)invocation.getArgument(0)
+						&& map.gold.y == (Integer)invocation.getArgument(1);
+				return atGold ? Integer.valueOf(GOLD_ID) : null;
+			} else if(name.equals("getResourceNode")) {
+				return ((Integer)invocation.getArgument(0)).intValue() == GOLD_ID ? goldView : null;
+			} else if(name.equals("getAllResourceIds")) {
+				return Collections.singletonList(GOLD_ID);
+			}
+			return unscripted(invocation);
+		}
+
+		private TemplateView template(final int id, final String templateName) {
+			return mock(TemplateView.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) {
+					String name = invocation.getMethod().getName();
+					if(name.equals("getID")) {
+						return id;
+					} else if(name.equals("getName")) {
+						return templateName;
+					}
+					return unscripted(invocation);
+				}
+			}));
+		}
+
+		private ResourceView resource() {
+			return mock(ResourceView.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+				@Override
+				public Object answer(InvocationOnMock invocation) {
+					String name = invocation.getMethod().getName();
+					if(name.equals("getID")) {
+						return GOLD_ID;
+					} else if(name.equals("getType")) {
+						return ResourceNode.Type.GOLD_MINE;
+					} else if(name.equals("getXPosition")) {
+						return map.gold.x;
+					} else if(name.equals("getYPosition")) {
+						return map.gold.y;
+					}
+					return unscripted(invocation);
+				}
+			}));
+		}
+
+		private static Object unscripted(InvocationOnMock invocation) {
+			if(invocation.getMethod().getName().equals("toString")) {
+				return "scripted " + invocation.getMock().getClass().getSuperclass().getSimpleName();
+			}
+			throw new UnsupportedOperationException("The scripted world does not answer " + invocation.getMethod());
+		}
+	}
+
+	private static class Unit {
+		final int id;
+		final String type;
+		final TemplateView template;
+		int x;
+		int y;
+		int hp;
+		int cargo = 0;
+		UnitView view;
+		Action lastAction;
+		ActionType working;
+		int progress;
+
+		Unit(int id, String type, TemplateView template, int x, int y, int hp) {
+			this.id = id;
+			this.type = type;
+			this.template = template;
+			this.x = x;
+			this.y = y;
+			this.hp = hp;
+		}
+
+		boolean isPeasant() {
+			return type.equals("Peasant");
+		}
+
+		/**
+		 *
+		 * @return 1 for the enemy towers, 0 for the agent's own units
+		 */
+		int getPlayer() {
+			return type.equals("GuardTower") ? 1 : 0;
+		}
+
+		Point location() {
+			return new Point(x, y);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the pre-clipped runs of StencilKernel against a plain loop over
+ * every offset within the radius that skips the out-of-bounds ones, for every
+ * shape, small radii and small boards, so every edge and corner case is hit.
+ */
+public class StencilKernelTest {
+	private static final int MAX_RADIUS = 6;
+	private static final int MAX_EXTENT = 10;
+	private static final double EPSILON = 1e-9;
+
+	private static final StencilKernel.Weights FALLOFF = new StencilKernel.Weights() {
+		public double weight(int dx, int dy) {
+			return 1.0 / (1 + Math.abs(dx) + 2 * Math.abs(dy));
+		}
+	};
+
+	@Test
+	public void applyVisitsTheClippedNeighbourhood() {
+		for(StencilKernel.Shape shape : StencilKernel.Shape.values()) {
+			for(int radius = 0; radius <= MAX_RADIUS; radius++) {
+				for(StencilKernel.Weights weights : new StencilKernel.Weights[] {null, FALLOFF}) {
+					for(int columns = 1; columns <= MAX_EXTENT; columns++) {
+						for(int rows = 1; rows <= MAX_EXTENT; rows++) {
+							StencilKernel kernel = new StencilKernel(radius, shape, weights);
+							kernel.bind(columns, rows);
+							for(int x = 0; x < columns; x++) {
+								for(int y = 0; y < rows; y++) {
+									String where = shape + " r=" + radius + " " + columns + "x" + rows + " at (" + x + ", " + y + ")";
+									final Map<Long, Double> visited = new HashMap<Long, Double>();
+									kernel.apply(x, y, new StencilKernel.CellVisitor() {
+										public void visit(int i, int j, double weight) {
+											assertEquals(null, visited.put(key(i, j), weight));
+										}
+									});
+									Map<Long, Double> expected = naive(shape, radius, weights, columns, rows, x, y);
+									assertEquals(where, expected, visited);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sumMatchesTheClippedNeighbourhood() {
+		Random random = new Random(42);
+		for(StencilKernel.Shape shape : StencilKernel.Shape.values()) {
+			for(int radius = 0; radius <= MAX_RADIUS; radius++) {
+				for(StencilKernel.Weights weights : new StencilKernel.Weights[] {null, FALLOFF}) {
+					for(int columns = 1; columns <= MAX_EXTENT; columns++) {
+						for(int rows = 1; rows <= MAX_EXTENT; rows++) {
+							BeliefGrid grid = BeliefGrid.create(BeliefGrid.Precision.DOUBLE, columns, rows);
+							for(int x = 0; x < columns; x++) {
+								for(int y = 0; y < rows; y++) {
+									grid.setProb(x, y, random.nextDouble());
+								}
+							}
+							StencilKernel kernel = new StencilKernel(radius, shape, weights);
+							kernel.bind(columns, rows);
+							for(int x = 0; x < columns; x++) {
+								for(int y = 0; y < rows; y++) {
+									double expected = 0;
+									for(Map.Entry<Long, Double> cell : naive(shape, radius, weights, columns, rows, x, y).entrySet()) {
+										expected += cell.getValue() * grid.getProb((int)(cell.getKey() >> 32), (int)(long)cell.getKey());
+									}
+									assertEquals(shape + " r=" + radius + " " + columns + "x" + rows + " at (" + x + ", " + y + ")",
+											expected, kernel.sum(grid, x, y), EPSILON);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The weight of every in-bounds location of the kernel centered at (x, y), by location
+	 */
+	private static Map<Long, Double> naive(StencilKernel.Shape shape, int radius, StencilKernel.Weights weights,
+			int columns, int rows, int x, int y) {
+		Map<Long, Double> cells = new HashMap<Long, Double>();
+		for(int i = -radius; i <= radius; i++) {
+			for(int j = -radius; j <= radius; j++) {
+				boolean inShape = shape == StencilKernel.Shape.SQUARE
+						|| (shape == StencilKernel.Shape.DIAMOND && Math.abs(i) + Math.abs(j) <= radius)
+						|| (shape == StencilKernel.Shape.DISK && i * i + j * j <= radius * radius);
+				if(inShape && x + i >= 0 && x + i < columns && y + j >= 0 && y + j < rows) {
+					cells.put(key(x + i, y + j), weights == null ? 1 : weights.weight(i, j));
+				}
+			}
+		}
+		return cells;
+	}
+
+	private static long key(int x, int y) {
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+}